@@ -0,0 +1,86 @@
+package daverog.jsonld.tree;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+/**
+ * Scans the model once, recording the outgoing edges, incoming edges
+ * and type of every node, so that expanding a resource is a map lookup
+ * rather than a query against the model.
+ * 
+ * Outgoing edges are held in the order the model lists them for the
+ * subject, so trees built from the index match those built by querying
+ * the model.
+ */
+class AdjacencyIndex implements StatementLookup {
+
+	private final Map<Node, Edges> edges = Maps.newHashMap();
+
+	public AdjacencyIndex(Model model) {
+		StmtIterator statements = model.listStatements();
+		while (statements.hasNext()) {
+			Statement statement = statements.nextStatement();
+			Resource subject = statement.getSubject();
+			RDFNode object = statement.getObject();
+
+			Edges subjectEdges = getOrCreateEdges(subject.asNode());
+			if (subjectEdges.outgoing == null) subjectEdges.outgoing = Lists.newArrayListWithCapacity(4);
+			subjectEdges.outgoing.add(statement);
+			if (statement.getPredicate().getURI().equals(RdfTree.RDF_TYPE)) {
+				if (subjectEdges.typeCount == 0) subjectEdges.type = object;
+				subjectEdges.typeCount++;
+			}
+
+			if (object.isResource() && !object.equals(subject)) {
+				Edges objectEdges = getOrCreateEdges(object.asNode());
+				if (objectEdges.incoming == null) objectEdges.incoming = Lists.newArrayListWithCapacity(2);
+				objectEdges.incoming.add(statement);
+			}
+		}
+	}
+
+	private Edges getOrCreateEdges(Node node) {
+		Edges nodeEdges = edges.get(node);
+		if (nodeEdges == null) {
+			nodeEdges = new Edges();
+			edges.put(node, nodeEdges);
+		}
+		return nodeEdges;
+	}
+
+	public List<Statement> getStatements(Resource subject) {
+		Edges nodeEdges = edges.get(subject.asNode());
+		if (nodeEdges == null || nodeEdges.outgoing == null) return Collections.emptyList();
+		return nodeEdges.outgoing;
+	}
+
+	public List<Statement> getInverseStatements(Resource object) {
+		Edges nodeEdges = edges.get(object.asNode());
+		if (nodeEdges == null || nodeEdges.incoming == null) return Collections.emptyList();
+		return nodeEdges.incoming;
+	}
+
+	public RDFNode getSingleType(Resource subject) {
+		Edges nodeEdges = edges.get(subject.asNode());
+		if (nodeEdges == null || nodeEdges.typeCount != 1) return null;
+		return nodeEdges.type;
+	}
+
+	private static class Edges {
+		private List<Statement> outgoing;
+		private List<Statement> incoming;
+		private RDFNode type;
+		private int typeCount;
+	}
+
+}
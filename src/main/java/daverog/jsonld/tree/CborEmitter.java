@@ -0,0 +1,245 @@
+package daverog.jsonld.tree;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+/**
+ * Writes JSON-LD tokens to a stream as CBOR (RFC 7049). Objects are
+ * maps of indefinite length, so they can be written as they are walked,
+ * and arrays are sized. The document is a stringref namespace, and each
+ * string long enough to be worth it is given an index the first time it
+ * is written, and written as a reference to that index after that, so
+ * names and URIs that are repeated are only written once. Byte strings,
+ * which are the magnitudes of bignums, are numbered along with the text
+ * strings, as the namespace requires. Names are copied from the UTF-8
+ * their vocabulary encoded them as.
+ */
+class CborEmitter implements JsonLdEmitter {
+
+	private static final int UNSIGNED_INTEGER = 0;
+	private static final int NEGATIVE_INTEGER = 1;
+	private static final int BYTE_STRING = 2;
+	private static final int TEXT_STRING = 3;
+	private static final int ARRAY = 4;
+	private static final int TAG = 6;
+
+	private static final int INDEFINITE_MAP = 0xbf;
+	private static final int BREAK = 0xff;
+	private static final int FLOAT = 0xfa;
+	private static final int DOUBLE = 0xfb;
+
+	private static final int POSITIVE_BIGNUM = 2;
+	private static final int NEGATIVE_BIGNUM = 3;
+	private static final int DECIMAL_FRACTION = 4;
+	private static final int STRINGREF = 25;
+	private static final int STRINGREF_NAMESPACE = 256;
+
+	private final OutputStream out;
+	private final Map<String, Integer> stringRefs = Maps.newHashMap();
+	private final Map<ByteBuffer, Integer> byteStringRefs = Maps.newHashMap();
+	private int stringRefCount = 0;
+	private EncodedName deferredName;
+
+	public CborEmitter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Begins the namespace the strings of the document are referred to in
+	 */
+	public void beginDocument() throws IOException {
+		head(TAG, STRINGREF_NAMESPACE);
+	}
+
+	public void beginObject() throws IOException {
+		writeDeferredName();
+		out.write(INDEFINITE_MAP);
+	}
+
+	public void endObject() throws IOException {
+		if (deferredName != null) throw new IllegalStateException("Dangling name: " + deferredName.getName());
+		out.write(BREAK);
+	}
+
+	public void beginArray(int size) throws IOException {
+		writeDeferredName();
+		head(ARRAY, size);
+	}
+
+	public void endArray() throws IOException {
+	}
+
+	public void name(EncodedName name) throws IOException {
+		if (name == null) throw new NullPointerException("name == null");
+		if (deferredName != null) throw new IllegalStateException("Dangling name: " + deferredName.getName());
+		deferredName = name;
+	}
+
+	/**
+	 * Writes the string, or omits the member if it is null
+	 */
+	public void value(String value) throws IOException {
+		if (value == null) {
+			deferredName = null;
+			return;
+		}
+		writeDeferredName();
+		string(value, null);
+	}
+
+	public void value(EncodedName value) throws IOException {
+		writeDeferredName();
+		string(value.getName(), value.getUtf8());
+	}
+
+	/**
+	 * Writes integers as integers, or bignums if they do not fit in
+	 * 64 bits, decimals as decimal fractions, and anything else
+	 * as a floating point number
+	 */
+	public void value(Number value) throws IOException {
+		writeDeferredName();
+		if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+			integer(value.longValue());
+		} else if (value instanceof BigInteger) {
+			integer((BigInteger) value);
+		} else if (value instanceof BigDecimal) {
+			BigDecimal decimal = (BigDecimal) value;
+			head(TAG, DECIMAL_FRACTION);
+			head(ARRAY, 2);
+			integer(-decimal.scale());
+			integer(decimal.unscaledValue());
+		} else if (value instanceof Float) {
+			out.write(FLOAT);
+			bytes(Float.floatToIntBits(value.floatValue()), 4);
+		} else {
+			out.write(DOUBLE);
+			bytes(Double.doubleToLongBits(value.doubleValue()), 8);
+		}
+	}
+
+	public void value(LiteralValue literal) throws IOException {
+		if (literal.isNumeric()) {
+			value((Number) literal.getValue());
+		} else {
+			value(literal.getLexicalForm());
+		}
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	private void writeDeferredName() throws IOException {
+		if (deferredName != null) {
+			string(deferredName.getName(), deferredName.getUtf8());
+			deferredName = null;
+		}
+	}
+
+	/**
+	 * Writes the string, whose UTF-8 encoding can be given if it is known
+	 */
+	private void string(String value, byte[] utf8) throws IOException {
+		Integer stringRef = stringRefs.get(value);
+		if (stringRef != null) {
+			stringRef(stringRef);
+			return;
+		}
+		if (utf8 == null) utf8 = value.getBytes(Charsets.UTF_8);
+		head(TEXT_STRING, utf8.length);
+		out.write(utf8);
+		if (utf8.length >= getMinimumReferencedLength(stringRefCount)) {
+			stringRefs.put(value, stringRefCount++);
+		}
+	}
+
+	/**
+	 * Writes the bytes, which must not change afterwards, as they
+	 * are kept to be referred to if they are written again
+	 */
+	private void byteString(byte[] bytes, int offset, int length) throws IOException {
+		ByteBuffer key = ByteBuffer.wrap(bytes, offset, length);
+		Integer stringRef = byteStringRefs.get(key);
+		if (stringRef != null) {
+			stringRef(stringRef);
+			return;
+		}
+		head(BYTE_STRING, length);
+		out.write(bytes, offset, length);
+		if (length >= getMinimumReferencedLength(stringRefCount)) {
+			byteStringRefs.put(key, stringRefCount++);
+		}
+	}
+
+	private void stringRef(int index) throws IOException {
+		head(TAG, STRINGREF);
+		head(UNSIGNED_INTEGER, index);
+	}
+
+	/**
+	 * Strings are only given an index if a reference
+	 * to that index would be shorter than they are
+	 */
+	static int getMinimumReferencedLength(long index) {
+		if (index < 24) return 3;
+		if (index < 0x100) return 4;
+		if (index < 0x10000) return 5;
+		if (index < 0x100000000L) return 7;
+		return 11;
+	}
+
+	private void integer(long value) throws IOException {
+		if (value >= 0) head(UNSIGNED_INTEGER, value);
+		else head(NEGATIVE_INTEGER, -1 - value);
+	}
+
+	private void integer(BigInteger value) throws IOException {
+		if (value.bitLength() < 64) {
+			integer(value.longValue());
+			return;
+		}
+		boolean negative = value.signum() < 0;
+		head(TAG, negative ? NEGATIVE_BIGNUM : POSITIVE_BIGNUM);
+		byte[] magnitude = (negative ? value.negate().subtract(BigInteger.ONE) : value).toByteArray();
+		int offset = magnitude[0] == 0 ? 1 : 0;
+		byteString(magnitude, offset, magnitude.length - offset);
+	}
+
+	/**
+	 * The initial byte of a data item of the major type, and its
+	 * argument, in as few bytes as it fits in
+	 */
+	private void head(int majorType, long argument) throws IOException {
+		int initialByte = majorType << 5;
+		if (argument < 24) {
+			out.write(initialByte | (int) argument);
+		} else if (argument <= 0xff) {
+			out.write(initialByte | 24);
+			bytes(argument, 1);
+		} else if (argument <= 0xffff) {
+			out.write(initialByte | 25);
+			bytes(argument, 2);
+		} else if (argument <= 0xffffffffL) {
+			out.write(initialByte | 26);
+			bytes(argument, 4);
+		} else {
+			out.write(initialByte | 27);
+			bytes(argument, 8);
+		}
+	}
+
+	private void bytes(long value, int count) throws IOException {
+		for (int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+			out.write((int) (value >>> shift));
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package daverog.jsonld.tree;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+
+import daverog.jsonld.tree.NameResolver.ResolvedName;
+
+/**
+ * What a child tree is ordered by, worked out once per child, so that
+ * canonicalising a tree compares keys rather than re-checking each
+ * child's kind and re-resolving names for every comparison.
+ *
+ * Keys compare exactly as RdfTree.compareTo compares the children, and
+ * are sorted with the same algorithm, so the order is the same.
+ */
+class ChildSortKey {
+
+	private static final int TYPE_RANK = 0;
+
+	public static final Comparator<ChildSortKey> ORDER = new Comparator<ChildSortKey>() {
+		public int compare(ChildSortKey first, ChildSortKey second) {
+			if (first.rank != second.rank) return first.rank < second.rank ? -1 : 1;
+			if (first.rank == TYPE_RANK) return 0;
+
+			if (first.predicate.equals(second.predicate)) {
+				if (first.node.isLiteral())
+					return RdfTreeUtils.compareObjects(first.getLiteralValue(), second.getLiteralValue());
+				return RdfTreeUtils.compareObjects(first.node, second.node);
+			}
+
+			return first.getPredicateName().compareTo(second.getPredicateName());
+		}
+	};
+
+	private final RdfTree tree;
+	private final int rank;
+	private final Property predicate;
+	private final RDFNode node;
+
+	//Only worked out if they are compared, as literals that are
+	//never compared by value are never parsed
+	private Object literalValue;
+	private ResolvedName predicateName;
+
+	/**
+	 * Types first, then forward before inverse children, and within
+	 * each of those literals, childless resources, then resources
+	 * with children
+	 */
+	public ChildSortKey(RdfTree tree) {
+		this.tree = tree;
+		predicate = tree.getPredicate();
+		node = tree.getNode();
+		if (tree.isType()) {
+			rank = TYPE_RANK;
+		} else {
+			int kind = node.isLiteral() ? 0 : tree.isChildlessResource() ? 1 : 2;
+			rank = 1 + (tree.isInverse() ? 3 : 0) + kind;
+		}
+	}
+
+	/**
+	 * Sorts the children into canonical order
+	 */
+	public static void sort(List<RdfTree> children) {
+		if (children.size() < 2) return;
+
+		ChildSortKey[] sortKeys = new ChildSortKey[children.size()];
+		for (int i = 0; i < sortKeys.length; i++) {
+			sortKeys[i] = new ChildSortKey(children.get(i));
+		}
+		Arrays.sort(sortKeys, ORDER);
+		for (int i = 0; i < sortKeys.length; i++) {
+			children.set(i, sortKeys[i].tree);
+		}
+	}
+
+	private Object getLiteralValue() {
+		if (literalValue == null) literalValue = tree.getNameResolver().getLiteralValue(node.asLiteral()).getValue();
+		return literalValue;
+	}
+
+	private ResolvedName getPredicateName() {
+		if (predicateName == null) predicateName = tree.getNameResolver().resolve(predicate);
+		return predicateName;
+	}
+
+}
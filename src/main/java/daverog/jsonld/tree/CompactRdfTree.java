@@ -0,0 +1,170 @@
+package daverog.jsonld.tree;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+
+/**
+ * A read only view of one node of a tree held in compact storage.
+ * Views are created as the tree is read, and hold nothing but the
+ * storage, their index within it and the view they were reached
+ * from, as a node whose subtree is shared has more than one parent.
+ * A compact tree is already canonical, and cannot be modified.
+ */
+class CompactRdfTree extends RdfTree {
+
+	private final CompactTreeStorage storage;
+	private final int index;
+	private final CompactRdfTree parent;
+
+	public CompactRdfTree(CompactTreeStorage storage, int index, CompactRdfTree parent) {
+		super(storage.getNameResolver());
+		this.storage = storage;
+		this.index = index;
+		this.parent = parent;
+	}
+
+	@Override
+	public RDFNode getNode() {
+		return storage.getNode(index);
+	}
+
+	@Override
+	public Property getPredicate() {
+		return storage.getPredicate(index);
+	}
+
+	@Override
+	public boolean isInverse() {
+		return storage.isInverse(index);
+	}
+
+	@Override
+	public Resource getType() {
+		return storage.getType(index);
+	}
+
+	@Override
+	public List<RdfTree> getChildren() {
+		return new Children();
+	}
+
+	@Override
+	public NameResolver getNameResolver() {
+		return storage.getNameResolver();
+	}
+
+	@Override
+	public boolean isList() {
+		return index == 0 && storage.isList();
+	}
+
+	@Override
+	public boolean isRoot() {
+		return index == 0;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return storage.getChildCount(index) == 0 && getNode() == null;
+	}
+
+	@Override
+	public boolean isChildlessResource() {
+		return getNode().isResource() && storage.getChildCount(index) == 0;
+	}
+
+	@Override
+	public boolean hasParentWithNode(RDFNode node) {
+		for (CompactRdfTree ancestor = parent; ancestor != null; ancestor = ancestor.parent) {
+			if (node.equals(ancestor.getNode())) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean hasListRootWithNode(RDFNode node) {
+		if (index == 0 || !storage.isList()) return false;
+		int first = storage.getFirstChild(0);
+		for (int item = first; item < first + storage.getChildCount(0); item++) {
+			if (node.equals(storage.getNode(item))) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The shape of this tree, which every tree that is the same
+	 * below its root, wherever it is, shares
+	 */
+	int getShape() {
+		return storage.getShape(index);
+	}
+
+	/**
+	 * Whether the same tree appears elsewhere in the storage
+	 */
+	boolean isShared() {
+		return storage.isShared(index);
+	}
+
+	@Override
+	public void canonicalise() {
+	}
+
+	@Override
+	public RdfTree freeze() {
+		if (storage.isFrozen()) return this;
+		return super.freeze();
+	}
+
+	@Override
+	public boolean isConstructed() {
+		return true;
+	}
+
+	@Override
+	public boolean isFullyConstructed() {
+		return true;
+	}
+
+	@Override
+	public void addChild(Statement statement) {
+		throw new UnsupportedOperationException("A compact tree cannot be modified");
+	}
+
+	@Override
+	public void addListItem(Resource listItem) {
+		throw new UnsupportedOperationException("A compact tree cannot be modified");
+	}
+
+	@Override
+	public void setType(Resource type) {
+		throw new UnsupportedOperationException("A compact tree cannot be modified");
+	}
+
+	@Override
+	public void markAsConstructed() {
+		throw new UnsupportedOperationException("A compact tree cannot be modified");
+	}
+
+	private class Children extends AbstractList<RdfTree> implements RandomAccess {
+
+		@Override
+		public RdfTree get(int child) {
+			if (child < 0 || child >= size()) throw new IndexOutOfBoundsException("No child at " + child);
+			return new CompactRdfTree(storage, storage.getFirstChild(index) + child, CompactRdfTree.this);
+		}
+
+		@Override
+		public int size() {
+			return storage.getChildCount(index);
+		}
+
+	}
+
+}
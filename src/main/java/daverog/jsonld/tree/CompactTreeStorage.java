@@ -0,0 +1,362 @@
+package daverog.jsonld.tree;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+import com.google.common.collect.Maps;
+import com.google.common.primitives.Ints;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * Holds a whole tree in a handful of arrays rather than as one object
+ * per node. Each node of the tree is an index into parallel arrays of
+ * its term, predicate, type and children, with the terms and predicates
+ * each stored once in a dictionary. The children of a node occupy a
+ * contiguous range of indexes, in canonical order, and the root is
+ * always index 0.
+ *
+ * Trees are laid out by appending the children of a node, which must
+ * already have been added, so a list can be laid out one item at a time.
+ * Subtrees are hash-consed as they are laid out: each node has a shape,
+ * its term, type and the predicates, directions and shapes of its
+ * children, and nodes of the same shape share one range of children.
+ * Reference data that appears under many list items is held once, and
+ * a node may be reached from several parents, so a node's parent is
+ * only known to the view it was reached through.
+ */
+class CompactTreeStorage {
+
+	private static final int NONE = -1;
+
+	private final NameResolver nameResolver;
+	private final boolean list;
+	private final boolean frozen;
+
+	private RDFNode[] terms = new RDFNode[16];
+	private Property[] predicates = new Property[16];
+	private int termCount = 0;
+	private int predicateCount = 0;
+	private Map<RDFNode, Integer> termIds = Maps.newHashMap();
+	private Map<Property, Integer> predicateIds = Maps.newHashMap();
+
+	private int size = 0;
+	private int[] nodes = new int[16];
+	private int[] predicatesOfNodes = new int[16];
+	private int[] types = new int[16];
+	private int[] firstChildren = new int[16];
+	private int[] childCounts = new int[16];
+	private int[] shapesOfNodes = new int[16];
+	private final BitSet inverse = new BitSet();
+
+	//The shapes, and where the children of each shape were laid out,
+	//while the tree is laid out, and the shapes that are laid out once
+	//but used by more than one node
+	private Map<List<Integer>, Integer> shapes = Maps.newHashMap();
+	private Map<Integer, Integer> firstChildrenOfShapes = Maps.newHashMap();
+	private final BitSet sharedShapes = new BitSet();
+
+	public CompactTreeStorage(NameResolver nameResolver, boolean list) {
+		this(nameResolver, list, false);
+	}
+
+	/**
+	 * Frozen storage holds copies of the terms and predicates that 
+	 * belong to no model
+	 */
+	public CompactTreeStorage(NameResolver nameResolver, boolean list, boolean frozen) {
+		this.nameResolver = nameResolver;
+		this.list = list;
+		this.frozen = frozen;
+	}
+
+	/**
+	 * A compact copy of a fully constructed tree, which is
+	 * canonicalised first
+	 */
+	public static CompactRdfTree compact(RdfTree tree) {
+		return copy(tree, new CompactTreeStorage(tree.getNameResolver(), tree.isList()));
+	}
+
+	/**
+	 * A compact copy of a tree that is detached from its model, along
+	 * with its NameResolver. A lazy tree is constructed in full.
+	 */
+	public static CompactRdfTree freeze(RdfTree tree) {
+		return copy(tree, new CompactTreeStorage(tree.getNameResolver().freeze(), tree.isList(), true));
+	}
+
+	private static CompactRdfTree copy(RdfTree tree, CompactTreeStorage storage) {
+		tree.canonicalise();
+		storage.addRoot(tree);
+		storage.appendDescendants(0, tree);
+		storage.trim();
+		return storage.getTree(0);
+	}
+
+	public int addRoot(RdfTree tree) {
+		if (size != 0) throw new IllegalStateException("The root has already been added");
+		return add(tree);
+	}
+
+	/**
+	 * Appends the children of the tree at the index, and their
+	 * children in turn, breadth first, sharing the children of
+	 * any node whose shape has already been laid out. The tree
+	 * must be canonical.
+	 */
+	public void appendDescendants(int index, RdfTree tree) {
+		Queue<ShapedTree> pendingTrees = new ArrayDeque<ShapedTree>();
+		Queue<Integer> pendingIndexes = new ArrayDeque<Integer>();
+		pendingTrees.add(getShapedTree(tree));
+		pendingIndexes.add(index);
+		while (!pendingTrees.isEmpty()) {
+			ShapedTree current = pendingTrees.remove();
+			int currentIndex = pendingIndexes.remove();
+			types[currentIndex] = getTermId(current.tree.getType());
+			shapesOfNodes[currentIndex] = current.shape;
+
+			Integer sharedFirst = firstChildrenOfShapes.get(current.shape);
+			if (sharedFirst != null) {
+				firstChildren[currentIndex] = sharedFirst;
+				childCounts[currentIndex] = current.children.length;
+				sharedShapes.set(current.shape);
+				continue;
+			}
+
+			int first = size;
+			firstChildren[currentIndex] = first;
+			childCounts[currentIndex] = current.children.length;
+			for (int i = 0; i < current.children.length; i++) {
+				add(current.children[i].tree);
+				pendingTrees.add(current.children[i]);
+				pendingIndexes.add(first + i);
+			}
+			if (current.children.length > 0) firstChildrenOfShapes.put(current.shape, first);
+		}
+	}
+
+	/**
+	 * Works out the shape of the tree and every tree below it. The
+	 * shapes of its children are worked out first, so this is done
+	 * before any of the tree is laid out. The trees being shaped are
+	 * kept on a stack, rather than recursed into, so that a tree of
+	 * any depth can be shaped.
+	 */
+	private ShapedTree getShapedTree(RdfTree tree) {
+		Deque<ShapeFrame> parents = new ArrayDeque<ShapeFrame>();
+		ShapeFrame frame = new ShapeFrame(tree);
+		while (true) {
+			if (frame.next < frame.shapedChildren.length) {
+				parents.push(frame);
+				frame = new ShapeFrame(frame.children.get(frame.next));
+				continue;
+			}
+
+			List<Integer> key = Ints.asList(frame.shape);
+			Integer id = shapes.get(key);
+			if (id == null) {
+				id = shapes.size();
+				shapes.put(key, id);
+			}
+			ShapedTree shapedTree = new ShapedTree(frame.tree, id, frame.shapedChildren);
+			if (parents.isEmpty()) return shapedTree;
+
+			frame = parents.pop();
+			int i = frame.next++;
+			RdfTree child = frame.children.get(i);
+			frame.shapedChildren[i] = shapedTree;
+			frame.shape[2 + i * 3] = getPredicateId(child.getPredicate());
+			frame.shape[3 + i * 3] = child.isInverse() ? 1 : 0;
+			frame.shape[4 + i * 3] = shapedTree.shape;
+		}
+	}
+
+	/**
+	 * Appends the children of the tree at the index, returning
+	 * the index of the first child, without sharing them. The 
+	 * children are laid out in turn, once they have been 
+	 * constructed, by appending their descendants. The type of
+	 * the tree is recorded again, as it may have been added 
+	 * before it was constructed.
+	 */
+	public int appendChildren(int index, RdfTree tree) {
+		types[index] = getTermId(tree.getType());
+		List<RdfTree> children = tree.getChildren();
+		int first = size;
+		firstChildren[index] = first;
+		childCounts[index] = children.size();
+		for (RdfTree child : children) {
+			add(child);
+		}
+		return first;
+	}
+
+	private int add(RdfTree tree) {
+		if (size == nodes.length) grow();
+		int index = size++;
+		nodes[index] = getTermId(tree.getNode());
+		predicatesOfNodes[index] = getPredicateId(tree.getPredicate());
+		types[index] = getTermId(tree.getType());
+		firstChildren[index] = size;
+		childCounts[index] = 0;
+		shapesOfNodes[index] = NONE;
+		if (tree.isInverse()) inverse.set(index);
+		return index;
+	}
+
+	private void grow() {
+		int capacity = nodes.length * 2;
+		nodes = Arrays.copyOf(nodes, capacity);
+		predicatesOfNodes = Arrays.copyOf(predicatesOfNodes, capacity);
+		types = Arrays.copyOf(types, capacity);
+		firstChildren = Arrays.copyOf(firstChildren, capacity);
+		childCounts = Arrays.copyOf(childCounts, capacity);
+		shapesOfNodes = Arrays.copyOf(shapesOfNodes, capacity);
+	}
+
+	private int getTermId(RDFNode term) {
+		if (term == null) return NONE;
+		Integer id = termIds.get(term);
+		if (id == null) {
+			if (termCount == terms.length) terms = Arrays.copyOf(terms, termCount * 2);
+			id = termCount++;
+			terms[id] = frozen ? RdfTreeUtils.detachNode(term) : term;
+			termIds.put(term, id);
+		}
+		return id;
+	}
+
+	private int getPredicateId(Property predicate) {
+		if (predicate == null) return NONE;
+		Integer id = predicateIds.get(predicate);
+		if (id == null) {
+			if (predicateCount == predicates.length) predicates = Arrays.copyOf(predicates, predicateCount * 2);
+			id = predicateCount++;
+			predicates[id] = frozen ? RdfTreeUtils.detachProperty(predicate) : predicate;
+			predicateIds.put(predicate, id);
+		}
+		return id;
+	}
+
+	/**
+	 * Releases the dictionaries' lookups and any spare capacity,
+	 * once the whole tree has been laid out
+	 */
+	public void trim() {
+		termIds = null;
+		predicateIds = null;
+		shapes = null;
+		firstChildrenOfShapes = null;
+		terms = Arrays.copyOf(terms, termCount);
+		predicates = Arrays.copyOf(predicates, predicateCount);
+		nodes = Arrays.copyOf(nodes, size);
+		predicatesOfNodes = Arrays.copyOf(predicatesOfNodes, size);
+		types = Arrays.copyOf(types, size);
+		firstChildren = Arrays.copyOf(firstChildren, size);
+		childCounts = Arrays.copyOf(childCounts, size);
+		shapesOfNodes = Arrays.copyOf(shapesOfNodes, size);
+	}
+
+	public CompactRdfTree getTree(int index) {
+		return new CompactRdfTree(this, index, null);
+	}
+
+	public NameResolver getNameResolver() {
+		return nameResolver;
+	}
+
+	public boolean isList() {
+		return list;
+	}
+
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public RDFNode getNode(int index) {
+		int id = nodes[index];
+		return id == NONE ? null : terms[id];
+	}
+
+	public Property getPredicate(int index) {
+		int id = predicatesOfNodes[index];
+		return id == NONE ? null : predicates[id];
+	}
+
+	public boolean isInverse(int index) {
+		return inverse.get(index);
+	}
+
+	public Resource getType(int index) {
+		int id = types[index];
+		return id == NONE ? null : (Resource) terms[id];
+	}
+
+	public int getFirstChild(int index) {
+		return firstChildren[index];
+	}
+
+	public int getChildCount(int index) {
+		return childCounts[index];
+	}
+
+	/**
+	 * The shape of the node, which it shares with every node whose
+	 * subtree is the same, or -1 for the root of a list
+	 */
+	public int getShape(int index) {
+		return shapesOfNodes[index];
+	}
+
+	/**
+	 * Whether more than one node has the shape of the node
+	 */
+	public boolean isShared(int index) {
+		return shapesOfNodes[index] != NONE && sharedShapes.get(shapesOfNodes[index]);
+	}
+
+	/**
+	 * A tree whose shape is being worked out, and
+	 * the next of its children to be shaped
+	 */
+	private class ShapeFrame {
+		private final RdfTree tree;
+		private final List<RdfTree> children;
+		private final ShapedTree[] shapedChildren;
+		private final int[] shape;
+		private int next = 0;
+
+		private ShapeFrame(RdfTree tree) {
+			this.tree = tree;
+			children = tree.getChildren();
+			shapedChildren = new ShapedTree[children.size()];
+			shape = new int[2 + children.size() * 3];
+			shape[0] = getTermId(tree.getNode());
+			shape[1] = getTermId(tree.getType());
+		}
+	}
+
+	private static class ShapedTree {
+		private final RdfTree tree;
+		private final int shape;
+		private final ShapedTree[] children;
+
+		private ShapedTree(RdfTree tree, int shape, ShapedTree[] children) {
+			this.tree = tree;
+			this.shape = shape;
+			this.children = children;
+		}
+	}
+
+}
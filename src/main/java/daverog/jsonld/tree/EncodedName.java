@@ -0,0 +1,42 @@
+package daverog.jsonld.tree;
+
+import com.google.common.base.Charsets;
+
+/**
+ * A name as the writers write it: escaped and quoted as a JSON
+ * string, and encoded as UTF-8 for CBOR. Predicate names, type names
+ * and @context keys are encoded once for every tree named with the
+ * same vocabulary, then copied, as they are written thousands of
+ * times in each document.
+ */
+class EncodedName {
+
+	private final String name;
+	private final char[] json;
+	private final byte[] utf8;
+
+	public EncodedName(String name) {
+		this.name = name;
+		json = JsonEmitter.quote(name);
+		utf8 = name.getBytes(Charsets.UTF_8);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Not to be modified
+	 */
+	public char[] getJson() {
+		return json;
+	}
+
+	/**
+	 * Not to be modified
+	 */
+	public byte[] getUtf8() {
+		return utf8;
+	}
+
+}
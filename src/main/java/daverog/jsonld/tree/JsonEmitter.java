@@ -0,0 +1,344 @@
+package daverog.jsonld.tree;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Writes JSON tokens to a writer, formatted exactly as Gson's
+ * JsonWriter formats them when Gson itself writes a document: HTML
+ * safe, lenient and omitting null members. It can also write a value
+ * that has already been serialised, so that fragments can be reused.
+ *
+ * Tokens are copied into a buffer, which is written to the writer as
+ * it fills and when the emitter is flushed, rather than each being
+ * written on its own. Names are copied already escaped and quoted.
+ */
+class JsonEmitter implements JsonLdEmitter {
+
+	private static final String[] REPLACEMENT_CHARS = new String[128];
+	static {
+		for (int i = 0; i <= 0x1f; i++) {
+			REPLACEMENT_CHARS[i] = String.format("\\u%04x", i);
+		}
+		REPLACEMENT_CHARS['"'] = "\\\"";
+		REPLACEMENT_CHARS['\\'] = "\\\\";
+		REPLACEMENT_CHARS['\t'] = "\\t";
+		REPLACEMENT_CHARS['\b'] = "\\b";
+		REPLACEMENT_CHARS['\n'] = "\\n";
+		REPLACEMENT_CHARS['\r'] = "\\r";
+		REPLACEMENT_CHARS['\f'] = "\\f";
+		REPLACEMENT_CHARS['<'] = "\\u003c";
+		REPLACEMENT_CHARS['>'] = "\\u003e";
+		REPLACEMENT_CHARS['&'] = "\\u0026";
+		REPLACEMENT_CHARS['='] = "\\u003d";
+		REPLACEMENT_CHARS['\''] = "\\u0027";
+	}
+
+	private static final int EMPTY_DOCUMENT = 0;
+	private static final int NONEMPTY_DOCUMENT = 1;
+	private static final int EMPTY_ARRAY = 2;
+	private static final int NONEMPTY_ARRAY = 3;
+	private static final int EMPTY_OBJECT = 4;
+	private static final int NONEMPTY_OBJECT = 5;
+	private static final int DANGLING_NAME = 6;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	private final Writer out;
+	private final String indent;
+	private final String separator;
+	private final int baseDepth;
+	private final char[] buffer;
+	private int position = 0;
+
+	private int[] stack = new int[32];
+	private int stackSize = 1;
+	private EncodedName deferredName;
+
+	public JsonEmitter(Writer out, boolean prettyPrinting) {
+		this(out, prettyPrinting, 0);
+	}
+
+	/**
+	 * An emitter for a fragment that will be written as a
+	 * value at the given depth of another document
+	 */
+	public JsonEmitter(Writer out, boolean prettyPrinting, int baseDepth) {
+		this(out, prettyPrinting, baseDepth, BUFFER_SIZE);
+	}
+
+	private JsonEmitter(Writer out, boolean prettyPrinting, int baseDepth, int bufferSize) {
+		this.out = out;
+		this.buffer = new char[bufferSize];
+		this.indent = prettyPrinting ? "  " : null;
+		this.separator = prettyPrinting ? ": " : ":";
+		this.baseDepth = baseDepth;
+		stack[0] = EMPTY_DOCUMENT;
+	}
+
+	public void beginArray() throws IOException {
+		writeDeferredName();
+		open(EMPTY_ARRAY, '[');
+	}
+
+	/**
+	 * JSON arrays are not sized
+	 */
+	public void beginArray(int size) throws IOException {
+		beginArray();
+	}
+
+	public void endArray() throws IOException {
+		close(EMPTY_ARRAY, NONEMPTY_ARRAY, ']');
+	}
+
+	public void beginObject() throws IOException {
+		writeDeferredName();
+		open(EMPTY_OBJECT, '{');
+	}
+
+	public void endObject() throws IOException {
+		close(EMPTY_OBJECT, NONEMPTY_OBJECT, '}');
+	}
+
+	public void name(EncodedName name) throws IOException {
+		if (name == null) throw new NullPointerException("name == null");
+		if (deferredName != null) throw new IllegalStateException("Dangling name: " + deferredName.getName());
+		deferredName = name;
+	}
+
+	/**
+	 * Writes the string, or omits the member if it is null
+	 */
+	public void value(String value) throws IOException {
+		if (value == null) {
+			nullValue();
+			return;
+		}
+		writeDeferredName();
+		beforeValue();
+		string(value);
+	}
+
+	public void value(EncodedName value) throws IOException {
+		writeDeferredName();
+		beforeValue();
+		write(value.getJson());
+	}
+
+	public void nullValue() throws IOException {
+		if (deferredName != null) {
+			deferredName = null;
+			return;
+		}
+		beforeValue();
+		write("null");
+	}
+
+	/**
+	 * Writes the number, refusing floating point values that
+	 * are not finite, as JSON has no way of writing them
+	 */
+	public void value(Number value) throws IOException {
+		checkFinite(value);
+		writeDeferredName();
+		beforeValue();
+		write(value.toString());
+	}
+
+	/**
+	 * Writes the literal's JSON, which is only encoded
+	 * the first time the literal is written
+	 */
+	public void value(LiteralValue literal) throws IOException {
+		String json = literal.getJson();
+		if (json == null) {
+			if (literal.isNumeric()) {
+				checkFinite((Number) literal.getValue());
+				json = literal.getValue().toString();
+			} else {
+				json = new String(quote(literal.getLexicalForm()));
+			}
+			literal.setJson(json);
+		}
+		writeDeferredName();
+		beforeValue();
+		write(json);
+	}
+
+	private static void checkFinite(Number value) {
+		if (value instanceof Double || value instanceof Float) {
+			double doubleValue = value.doubleValue();
+			if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+				throw new IllegalArgumentException("JSON cannot represent the number " + doubleValue);
+			}
+		}
+	}
+
+	/**
+	 * Writes a value that has already been serialised by an
+	 * emitter with the same formatting, at the current depth
+	 */
+	public void rawValue(String json) throws IOException {
+		writeDeferredName();
+		beforeValue();
+		write(json);
+	}
+
+	/**
+	 * The depth a value written next would be at
+	 */
+	public int getDepth() {
+		return baseDepth + stackSize - 1;
+	}
+
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * The string, escaped and quoted
+	 */
+	static char[] quote(String value) {
+		//No character is escaped as more than six
+		JsonEmitter emitter = new JsonEmitter(null, false, 0, value.length() * 6 + 2);
+		try {
+			emitter.string(value);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to quote a string", e);
+		}
+		return Arrays.copyOf(emitter.buffer, emitter.position);
+	}
+
+	private void open(int empty, char openBracket) throws IOException {
+		beforeValue();
+		if (stackSize == stack.length) stack = Arrays.copyOf(stack, stackSize * 2);
+		stack[stackSize++] = empty;
+		write(openBracket);
+	}
+
+	private void close(int empty, int nonempty, char closeBracket) throws IOException {
+		int context = stack[stackSize - 1];
+		if (context != nonempty && context != empty) throw new IllegalStateException("Nesting problem");
+		if (deferredName != null) throw new IllegalStateException("Dangling name: " + deferredName.getName());
+		stackSize--;
+		if (context == nonempty) newline();
+		write(closeBracket);
+	}
+
+	private void writeDeferredName() throws IOException {
+		if (deferredName != null) {
+			beforeName();
+			write(deferredName.getJson());
+			deferredName = null;
+		}
+	}
+
+	private void string(String value) throws IOException {
+		write('"');
+		int last = 0;
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			String replacement;
+			if (c < 128) {
+				replacement = REPLACEMENT_CHARS[c];
+				if (replacement == null) continue;
+			} else if (c == '\u2028') {
+				replacement = "\\u2028";
+			} else if (c == '\u2029') {
+				replacement = "\\u2029";
+			} else {
+				continue;
+			}
+			if (last < i) write(value, last, i - last);
+			write(replacement);
+			last = i + 1;
+		}
+		if (last < length) write(value, last, length - last);
+		write('"');
+	}
+
+	private void write(char c) throws IOException {
+		if (position == buffer.length) flushBuffer();
+		buffer[position++] = c;
+	}
+
+	private void write(String string) throws IOException {
+		write(string, 0, string.length());
+	}
+
+	private void write(String string, int offset, int length) throws IOException {
+		if (length > buffer.length - position) {
+			flushBuffer();
+			if (length > buffer.length) {
+				out.write(string, offset, length);
+				return;
+			}
+		}
+		string.getChars(offset, offset + length, buffer, position);
+		position += length;
+	}
+
+	private void write(char[] chars) throws IOException {
+		if (chars.length > buffer.length - position) {
+			flushBuffer();
+			if (chars.length > buffer.length) {
+				out.write(chars);
+				return;
+			}
+		}
+		System.arraycopy(chars, 0, buffer, position, chars.length);
+		position += chars.length;
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buffer, 0, position);
+		position = 0;
+	}
+
+	private void newline() throws IOException {
+		if (indent == null) return;
+		write('\n');
+		for (int i = 1 - baseDepth; i < stackSize; i++) {
+			write(indent);
+		}
+	}
+
+	private void beforeName() throws IOException {
+		int context = stack[stackSize - 1];
+		if (context == NONEMPTY_OBJECT) {
+			write(',');
+		} else if (context != EMPTY_OBJECT) {
+			throw new IllegalStateException("Nesting problem");
+		}
+		newline();
+		stack[stackSize - 1] = DANGLING_NAME;
+	}
+
+	private void beforeValue() throws IOException {
+		switch (stack[stackSize - 1]) {
+		case EMPTY_DOCUMENT:
+		case NONEMPTY_DOCUMENT:
+			stack[stackSize - 1] = NONEMPTY_DOCUMENT;
+			break;
+		case EMPTY_ARRAY:
+			stack[stackSize - 1] = NONEMPTY_ARRAY;
+			newline();
+			break;
+		case NONEMPTY_ARRAY:
+			write(',');
+			newline();
+			break;
+		case DANGLING_NAME:
+			write(separator);
+			stack[stackSize - 1] = NONEMPTY_OBJECT;
+			break;
+		default:
+			throw new IllegalStateException("Nesting problem");
+		}
+	}
+
+}
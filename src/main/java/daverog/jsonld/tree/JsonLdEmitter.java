@@ -0,0 +1,39 @@
+package daverog.jsonld.tree;
+
+import java.io.IOException;
+
+/**
+ * The tokens a JSON-LD document is written as, whatever it is encoded
+ * in. A name is only written with the value that follows it, so a
+ * member whose value is null is omitted.
+ */
+interface JsonLdEmitter {
+
+	void beginObject() throws IOException;
+
+	void endObject() throws IOException;
+
+	/**
+	 * Begins an array of the given number of values
+	 */
+	void beginArray(int size) throws IOException;
+
+	void endArray() throws IOException;
+
+	void name(EncodedName name) throws IOException;
+
+	void value(String value) throws IOException;
+
+	void value(EncodedName value) throws IOException;
+
+	void value(Number value) throws IOException;
+
+	/**
+	 * Writes a literal as a number if its value is one,
+	 * or as its lexical form if not
+	 */
+	void value(LiteralValue literal) throws IOException;
+
+	void flush() throws IOException;
+
+}
@@ -0,0 +1,115 @@
+package daverog.jsonld.tree;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Records JSON-LD tokens, so that they can be written to another
+ * emitter later, in the order they were recorded in
+ */
+class JsonLdRecorder implements JsonLdEmitter {
+
+	private static final byte BEGIN_OBJECT = 0;
+	private static final byte END_OBJECT = 1;
+	private static final byte BEGIN_ARRAY = 2;
+	private static final byte END_ARRAY = 3;
+	private static final byte NAME = 4;
+	private static final byte STRING = 5;
+	private static final byte NUMBER = 6;
+	private static final byte LITERAL = 7;
+	private static final byte ENCODED_NAME = 8;
+
+	private byte[] tokens = new byte[16];
+	private int tokenCount = 0;
+	//The argument of each token that has one, in order
+	private final List<Object> arguments = Lists.newArrayList();
+
+	public void beginObject() {
+		token(BEGIN_OBJECT);
+	}
+
+	public void endObject() {
+		token(END_OBJECT);
+	}
+
+	public void beginArray(int size) {
+		token(BEGIN_ARRAY);
+		arguments.add(size);
+	}
+
+	public void endArray() {
+		token(END_ARRAY);
+	}
+
+	public void name(EncodedName name) {
+		token(NAME);
+		arguments.add(name);
+	}
+
+	public void value(String value) {
+		token(STRING);
+		arguments.add(value);
+	}
+
+	public void value(EncodedName value) {
+		token(ENCODED_NAME);
+		arguments.add(value);
+	}
+
+	public void value(Number value) {
+		token(NUMBER);
+		arguments.add(value);
+	}
+
+	public void value(LiteralValue literal) {
+		token(LITERAL);
+		arguments.add(literal);
+	}
+
+	public void flush() {
+	}
+
+	public void replay(JsonLdEmitter emitter) throws IOException {
+		int argument = 0;
+		for (int i = 0; i < tokenCount; i++) {
+			switch (tokens[i]) {
+			case BEGIN_OBJECT:
+				emitter.beginObject();
+				break;
+			case END_OBJECT:
+				emitter.endObject();
+				break;
+			case BEGIN_ARRAY:
+				emitter.beginArray((Integer) arguments.get(argument++));
+				break;
+			case END_ARRAY:
+				emitter.endArray();
+				break;
+			case NAME:
+				emitter.name((EncodedName) arguments.get(argument++));
+				break;
+			case STRING:
+				emitter.value((String) arguments.get(argument++));
+				break;
+			case NUMBER:
+				emitter.value((Number) arguments.get(argument++));
+				break;
+			case ENCODED_NAME:
+				emitter.value((EncodedName) arguments.get(argument++));
+				break;
+			case LITERAL:
+				emitter.value((LiteralValue) arguments.get(argument++));
+				break;
+			}
+		}
+	}
+
+	private void token(byte token) {
+		if (tokenCount == tokens.length) tokens = Arrays.copyOf(tokens, tokenCount * 2);
+		tokens[tokenCount++] = token;
+	}
+
+}
@@ -0,0 +1,321 @@
+package daverog.jsonld.tree;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+import daverog.jsonld.tree.NameResolver.TypedResource;
+
+/**
+ * Writes the walk of a tree to an emitter as JSON-LD, whatever the
+ * emitter encodes it as. Each node is an object, and each group of
+ * children a field. The inverse groups, which come after the others
+ * in canonical order, are the fields of a @reverse object, in the
+ * order of a hash map of their names. Should another predicate's name
+ * be 'type' as well, the later group named @type replaces the earlier
+ * one, in its place.
+ *
+ * A list is an object of its items, as 'results', and its @context.
+ * The root of a tree that is not a list has its @context as its last
+ * field, if any resources are mapped.
+ *
+ * When the walk is shared with a sink that takes groups of adjacent
+ * children, the children of a predicate can be in several groups.
+ * The fields of a node where they are, which is rare, are recorded
+ * as they are walked, and written in order once the node is exited,
+ * as are its fields from the first one that is inverse, or named
+ * @type when another group can be named @type too.
+ */
+abstract class JsonLdWalker implements RdfTreeSink {
+
+	private static final EncodedName ID = new EncodedName("@id");
+	private static final EncodedName REVERSE = new EncodedName("@reverse");
+	private static final EncodedName CONTEXT = new EncodedName("@context");
+	private static final EncodedName RESULTS = new EncodedName("results");
+
+	private final JsonLdEmitter emitter;
+
+	//The node at each depth, the emitter it is written to, and
+	//the one the values of the group it is in are written to
+	private RdfTree[] nodes = new RdfTree[16];
+	private JsonLdEmitter[] nodeEmitters = new JsonLdEmitter[16];
+	private JsonLdEmitter[] groupEmitters = new JsonLdEmitter[16];
+	//The recorded fields of the node at each depth, if its children of
+	//a predicate are in several groups, or its fields are reordered
+	private final List<Map<DirectionalPredicate, RecordedField>> recordedFields = Lists.newArrayList();
+
+	public JsonLdWalker(JsonLdEmitter emitter) {
+		this.emitter = emitter;
+	}
+
+	public void walk(RdfTree tree) throws IOException {
+		new RdfTreeEmitter(this).emit(tree);
+	}
+
+	public boolean isGroupedByPredicate() {
+		return true;
+	}
+
+	public void begin(RdfTree tree) throws IOException {
+		if (tree.isEmpty()) {
+			emitter.beginObject();
+			emitter.endObject();
+		}
+	}
+
+	public void end(RdfTree tree) throws IOException {
+		emitter.flush();
+	}
+
+	public boolean event(RdfTreeCursor cursor) throws IOException {
+		RdfTree childTree = cursor.getTree();
+		int depth = cursor.getDepth();
+		switch (cursor.getEvent()) {
+		case ENTER_NODE:
+			JsonLdEmitter out = depth == 0 ? emitter : groupEmitters[depth - 1];
+			if (depth == nodeEmitters.length) {
+				nodes = Arrays.copyOf(nodes, depth * 2);
+				nodeEmitters = Arrays.copyOf(nodeEmitters, depth * 2);
+				groupEmitters = Arrays.copyOf(groupEmitters, depth * 2);
+			}
+			nodes[depth] = childTree;
+			nodeEmitters[depth] = out;
+			if (childTree.isList()) {
+				out.beginObject();
+				out.name(RESULTS);
+				out.beginArray(childTree.getChildren().size());
+				groupEmitters[depth] = out;
+			} else if (depth > 0 && out == emitter && childTree instanceof CompactRdfTree
+					&& ((CompactRdfTree) childTree).isShared() && writeSharedTree((CompactRdfTree) childTree)) {
+				return true;
+			} else {
+				while (recordedFields.size() <= depth) recordedFields.add(null);
+				recordedFields.set(depth, null);
+				out.beginObject();
+				out.name(ID);
+				out.value(childTree.getNode().asResource().getURI());
+			}
+			break;
+		case ENTER_GROUP:
+			if (cursor.isPredicateSplit() || recordedFields.get(depth) != null || isReordered(nodes[depth], childTree)) {
+				groupEmitters[depth] = record(childTree, cursor.getGroupSize(), depth);
+			} else {
+				startField(nodeEmitters[depth], childTree, cursor.getGroupSize());
+				groupEmitters[depth] = nodeEmitters[depth];
+			}
+			break;
+		case LEAF:
+			if (childTree.getNode().isResource()) {
+				String name = getName(childTree, childTree.getNode().asResource());
+				if (childTree.isType()) {
+					groupEmitters[depth - 1].value(childTree.getNameResolver().getEncodedName(name));
+				} else {
+					groupEmitters[depth - 1].value(name);
+				}
+			} else {
+				groupEmitters[depth - 1].value(childTree.getNameResolver().getLiteralValue(childTree.getNode().asLiteral()));
+			}
+			break;
+		case EXIT_GROUP:
+			if (groupEmitters[depth] == nodeEmitters[depth] && isWrittenAsArray(childTree, cursor.getGroupSize())) {
+				nodeEmitters[depth].endArray();
+			}
+			break;
+		case EXIT_NODE:
+			out = nodeEmitters[depth];
+			if (childTree.isList()) {
+				out.endArray();
+				out.name(CONTEXT);
+				writeContext(childTree);
+				out.endObject();
+			} else {
+				if (recordedFields.get(depth) != null) writeRecordedFields(out, depth);
+				if (childTree.isRoot() && !childTree.getNameResolver().getMappedResources().isEmpty()) {
+					out.name(CONTEXT);
+					writeContext(childTree);
+				}
+				out.endObject();
+			}
+			break;
+		}
+		return false;
+	}
+
+	private void startField(JsonLdEmitter out, RdfTree first, int size) throws IOException {
+		out.name(first.getNameResolver().getEncodedName(getName(first, first.getPredicate())));
+		if (isWrittenAsArray(first, size)) out.beginArray(size);
+	}
+
+	/**
+	 * Whether the fields of a node, from this group on, are written in
+	 * another order than they are walked in: the inverse ones, or all of
+	 * them from the first named @type, when a later group of another
+	 * predicate can be named @type too
+	 */
+	private static boolean isReordered(RdfTree tree, RdfTree first) {
+		if (first.isInverse()) return true;
+		if (!first.getNameResolver().isTypeNameShared()) return false;
+		if (!getName(first, first.getPredicate()).equals("@type")) return false;
+		for (RdfTree childTree: tree.getChildren()) {
+			if (!childTree.isInverse() && !childTree.getPredicate().equals(first.getPredicate())
+					&& getName(childTree, childTree.getPredicate()).equals("@type")) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The recorder for the values of a group, which are
+	 * added to those of earlier groups of its predicate
+	 */
+	private JsonLdRecorder record(RdfTree first, int size, int depth) {
+		Map<DirectionalPredicate, RecordedField> fields = recordedFields.get(depth);
+		if (fields == null) {
+			fields = Maps.newLinkedHashMap();
+			recordedFields.set(depth, fields);
+		}
+		DirectionalPredicate predicate = first.getDirectionalPredicate();
+		RecordedField field = fields.get(predicate);
+		if (field == null) {
+			field = new RecordedField(first);
+			fields.put(predicate, field);
+		}
+		field.size += size;
+		return field.values;
+	}
+
+	/**
+	 * Writes the recorded fields by name, where a later field replaces
+	 * an earlier one of the same name, keeping its place
+	 */
+	private void writeRecordedFields(JsonLdEmitter out, int depth) throws IOException {
+		Map<String, RecordedField> fields = Maps.newLinkedHashMap();
+		Map<String, RecordedField> reverseFields = Maps.newHashMap();
+		for (RecordedField field: recordedFields.get(depth).values()) {
+			String name = getName(field.first, field.first.getPredicate());
+			(field.first.isInverse() ? reverseFields : fields).put(name, field);
+		}
+		recordedFields.set(depth, null);
+
+		writeRecordedFields(out, fields);
+		if (!reverseFields.isEmpty()) {
+			out.name(REVERSE);
+			out.beginObject();
+			writeRecordedFields(out, reverseFields);
+			out.endObject();
+		}
+	}
+
+	private void writeRecordedFields(JsonLdEmitter out, Map<String, RecordedField> fields) throws IOException {
+		for (RecordedField field: fields.values()) {
+			startField(out, field.first, field.size);
+			field.values.replay(out);
+			if (isWrittenAsArray(field.first, field.size)) out.endArray();
+		}
+	}
+
+	/**
+	 * Writes a subtree that the same storage holds for several parents,
+	 * other than the root, at once, or returns false for it to be walked
+	 */
+	protected boolean writeSharedTree(CompactRdfTree tree) throws IOException {
+		return false;
+	}
+
+	/**
+	 * Writes the @context of the tree as a value, to the emitter
+	 * the walker was created with, which the root is written to
+	 */
+	protected abstract void writeContext(RdfTree tree) throws IOException;
+
+	/**
+	 * A group is an array unless it is a single literal, or a
+	 * single childless resource other than a type
+	 */
+	private static boolean isWrittenAsArray(RdfTree childTree, int size) {
+		if (size > 1) return true;
+		if (childTree.isChildlessResource()) {
+			return childTree.getPredicate().getURI().equals(RdfTree.RDF_TYPE);
+		}
+		return childTree.getNode().isResource();
+	}
+
+	private static class RecordedField {
+		private final RdfTree first;
+		private final JsonLdRecorder values = new JsonLdRecorder();
+		private int size = 0;
+
+		public RecordedField(RdfTree first) {
+			this.first = first;
+		}
+	}
+
+	static String getName(RdfTree tree, Resource resource) {
+		String name = tree.getNameResolver().getName(resource);
+		if (name.equals("type")) name = "@type";
+        else name = tree.getNameResolver().getPrefixedName(resource);
+		return name;
+	}
+
+	/**
+	 * The @context of a tree: each prefixed name with its URI and type,
+	 * and, for a list, 'results' as the @graph
+	 */
+	static SortedMap<String, SortedMap<String, String>> getContext(RdfTree tree) {
+		SortedMap<String, SortedMap<String, String>> nameUriMap = Maps.newTreeMap(getPrefixedNameUriMap(tree));
+		if (tree.isList()) {
+			nameUriMap.put("results", new TreeMap<String, String>(ImmutableMap.of("@id", "@graph")));
+		}
+		return nameUriMap;
+	}
+
+	static void writeContext(SortedMap<String, SortedMap<String, String>> nameUriMap, 
+			NameResolver nameResolver, JsonLdEmitter emitter) throws IOException {
+		emitter.beginObject();
+		for (Map.Entry<String, SortedMap<String, String>> name: nameUriMap.entrySet()) {
+			emitter.name(nameResolver.getEncodedName(name.getKey()));
+			emitter.beginObject();
+			for (Map.Entry<String, String> uriData: name.getValue().entrySet()) {
+				emitter.name(nameResolver.getEncodedName(uriData.getKey()));
+				emitter.value(uriData.getValue());
+			}
+			emitter.endObject();
+		}
+		emitter.endObject();
+	}
+
+    static SortedMap<String, SortedMap<String, String>> getPrefixedNameUriMap(RdfTree tree) {
+        SortedMap<String, TypedResource> prefixedNameUriMap = new TreeMap<String, TypedResource>();
+        for(Map.Entry<String, TypedResource> entry: tree.getNameResolver().getMappedResources().entrySet()) {
+            Resource resource = entry.getValue().getResource();
+            String name = tree.getNameResolver().getPrefixedName(resource);
+            prefixedNameUriMap.put(name, entry.getValue());
+        }
+
+        return Maps.transformValues(prefixedNameUriMap,
+                new Function<TypedResource, SortedMap<String, String>>() {
+                    public SortedMap<String, String> apply(TypedResource resource) {
+                        SortedMap<String, String> uriData = Maps.newTreeMap();
+                        uriData.put("@id", resource.getResource().getURI());
+                        switch (resource.getType()) {
+                            case VOCAB:
+                                uriData.put("@type", "@vocab");
+                                break;
+                            case ID:
+                                uriData.put("@type", "@id");
+                                break;
+                        }
+                        return uriData;
+                    }
+                });
+    }
+
+}
@@ -0,0 +1,181 @@
+package daverog.jsonld.tree;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * The values of a list item's ordering predicate, extracted and
+ * normalised once, so that sorting a list compares keys rather than
+ * querying the model and re-parsing literals for every comparison.
+ * 
+ * Keys compare exactly as RdfTreeUtils.compareTwoListsOfValues would
+ * compare the items' values: the values are grouped into classes of
+ * equal ordering, and the lowest class that only one of the items
+ * has a value in decides the order.
+ */
+class ListItemSortKey {
+
+	//Value types whose natural ordering is total, so that values of 
+	//one of these types are never ordered inconsistently
+	private static final Set<Class<?>> TOTALLY_ORDERED_TYPES = ImmutableSet.<Class<?>>of(
+			String.class, Integer.class, Long.class, Short.class, Byte.class, 
+			BigInteger.class, BigDecimal.class, Double.class, Float.class, Boolean.class);
+	
+	private static final int RANKS = 3;
+
+	/**
+	 * The following describes the ordering preference when sorting
+	 * lists of resources by the values of their objects.
+	 * 
+	 * The natural (Java) ordering is used, but with a preference
+	 * for types of object (in order of how they would appear in
+	 * a list):
+	 * 
+	 * 1: Strings
+	 * 2: Any other literals (ordered by toString if their types differ)
+	 * 3: Resources (ordered by URI)
+	 */
+	private static final Comparator<SortValue> VALUE_ORDER = new Comparator<SortValue>() {
+		public int compare(SortValue value1, SortValue value2) {
+			if (value1.rank != value2.rank) return value1.rank < value2.rank ? -1 : 1;
+			return RdfTreeUtils.compareObjects(value1.comparable, value2.comparable);
+		}
+	};
+
+	public static final Comparator<ListItemSortKey> ORDER = new Comparator<ListItemSortKey>() {
+		public int compare(ListItemSortKey first, ListItemSortKey second) {
+			if (!first.isTotallyOrderedWith(second)) {
+				//Values of differing types can be ordered inconsistently, by value
+				//and by toString, so that the result depends on the order the values
+				//are sorted in. Only the original comparison reproduces that.
+				return RdfTreeUtils.compareTwoListsOfValues(first.values, second.values, VALUE_ORDER);
+			}
+
+			int firstIndex = 0;
+			int secondIndex = 0;
+			while (firstIndex < first.groups.size() && secondIndex < second.groups.size()) {
+				ValueGroup firstGroup = first.groups.get(firstIndex);
+				ValueGroup secondGroup = second.groups.get(secondIndex);
+				int comparison = VALUE_ORDER.compare(firstGroup.representative, secondGroup.representative);
+				if (comparison < 0) return -1;
+				if (comparison > 0) return 1;
+				if (!secondGroup.nodes.contains(firstGroup.representative.node)) return -1;
+				firstIndex++;
+				secondIndex++;
+			}
+			if (firstIndex < first.groups.size()) return -1;
+			if (secondIndex < second.groups.size()) return 1;
+			return 0;
+		}
+	};
+
+	private final Resource item;
+	private final List<SortValue> values;
+	private final List<ValueGroup> groups = Lists.newArrayList();
+	
+	//The single type of this item's values of each rank, or null if it has
+	//none of that rank, and whether all of those types are totally ordered
+	private final Class<?>[] rankTypes = new Class<?>[RANKS];
+	private boolean totallyOrdered = true;
+
+	/**
+	 * Literals are parsed by the name resolver of the tree
+	 * the list is generated for, once for the whole tree
+	 */
+	public ListItemSortKey(Resource item, List<RDFNode> nodes, NameResolver nameResolver) {
+		this.item = item;
+
+		values = Lists.newArrayListWithCapacity(nodes.size());
+		for (RDFNode node : nodes) {
+			SortValue value = new SortValue(node, nameResolver);
+			values.add(value);
+
+			Class<?> type = value.comparable.getClass();
+			if (!TOTALLY_ORDERED_TYPES.contains(type)) totallyOrdered = false;
+			else if (rankTypes[value.rank] == null) rankTypes[value.rank] = type;
+			else if (rankTypes[value.rank] != type) totallyOrdered = false;
+		}
+
+		if (totallyOrdered) {
+			List<SortValue> sortedValues = Lists.newArrayList(values);
+			Collections.sort(sortedValues, VALUE_ORDER);
+
+			ValueGroup group = null;
+			for (SortValue value : sortedValues) {
+				if (group == null || VALUE_ORDER.compare(group.representative, value) != 0) {
+					group = new ValueGroup(value);
+					groups.add(group);
+				}
+				group.nodes.add(value.node);
+			}
+		}
+	}
+
+	public Resource getItem() {
+		return item;
+	}
+
+	private boolean isTotallyOrderedWith(ListItemSortKey other) {
+		if (!totallyOrdered || !other.totallyOrdered) return false;
+		for (int rank = 0; rank < RANKS; rank++) {
+			if (rankTypes[rank] != null && other.rankTypes[rank] != null 
+					&& rankTypes[rank] != other.rankTypes[rank]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * A value with its rank and parsed value. Values are equal
+	 * when their nodes are.
+	 */
+	private static class SortValue {
+		private final RDFNode node;
+		private final int rank;
+		private final Object comparable;
+
+		private SortValue(RDFNode node, NameResolver nameResolver) {
+			this.node = node;
+			if (node.isLiteral()) {
+				comparable = nameResolver.getLiteralValue(node.asLiteral()).getValue();
+				rank = comparable instanceof String ? 0 : 1;
+			} else {
+				comparable = node.toString();
+				rank = 2;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return node.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof SortValue && node.equals(((SortValue) obj).node);
+		}
+	}
+
+	/**
+	 * Values of equal ordering. The representative is the first of
+	 * them in the order the model listed them.
+	 */
+	private static class ValueGroup {
+		private final SortValue representative;
+		private final Set<RDFNode> nodes = Sets.newHashSetWithExpectedSize(1);
+
+		private ValueGroup(SortValue representative) {
+			this.representative = representative;
+		}
+	}
+
+}
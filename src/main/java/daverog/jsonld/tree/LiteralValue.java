@@ -0,0 +1,51 @@
+package daverog.jsonld.tree;
+
+import com.hp.hpl.jena.rdf.model.Literal;
+
+/**
+ * A literal's lexical form and the value Jena parses it as, worked
+ * out once per tree, as the same literals are compared again and
+ * again while a tree is sorted, and written again in every format.
+ * The JSON a literal is written as is kept once it is first written.
+ */
+class LiteralValue {
+
+	private final String lexicalForm;
+	private final Object value;
+	private final boolean numeric;
+
+	//Set by whichever JSON emitter writes the literal first,
+	//and the same whichever does
+	private volatile String json;
+
+	public LiteralValue(Literal literal) {
+		lexicalForm = literal.getLexicalForm();
+		value = literal.getValue();
+		numeric = value instanceof Number;
+	}
+
+	public String getLexicalForm() {
+		return lexicalForm;
+	}
+
+	public Object getValue() {
+		return value;
+	}
+
+	/**
+	 * Numeric literals are written as numbers,
+	 * and any other literal as its lexical form
+	 */
+	public boolean isNumeric() {
+		return numeric;
+	}
+
+	String getJson() {
+		return json;
+	}
+
+	void setJson(String json) {
+		this.json = json;
+	}
+
+}
@@ -0,0 +1,55 @@
+package daverog.jsonld.tree;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.SimpleSelector;
+import com.hp.hpl.jena.rdf.model.Statement;
+import com.hp.hpl.jena.rdf.model.StmtIterator;
+
+/**
+ * Queries the model for every resource that is expanded.
+ */
+class ModelStatementLookup implements StatementLookup {
+
+	private final Model model;
+	private final Property typeProperty;
+
+	public ModelStatementLookup(Model model) {
+		this.model = model;
+		this.typeProperty = model.getProperty(RdfTree.RDF_TYPE);
+	}
+
+	public List<Statement> getStatements(Resource subject) {
+		return model.listStatements(new SimpleSelector(
+			subject,
+			null,
+			(RDFNode) null)).toList();
+	}
+
+	public List<Statement> getInverseStatements(Resource object) {
+		List<Statement> inverseStatements = Lists.newArrayList();
+		StmtIterator statements = model.listStatements(new SimpleSelector(
+			null,
+			null,
+			(RDFNode) object));
+		while (statements.hasNext()) {
+			Statement statement = statements.nextStatement();
+			if (!statement.getSubject().equals(object)) inverseStatements.add(statement);
+		}
+		return inverseStatements;
+	}
+
+	public RDFNode getSingleType(Resource subject) {
+		List<Statement> types = model.listStatements(new SimpleSelector(
+			subject,
+			typeProperty,
+			(RDFNode) null)).toList();
+		return types.size() == 1 ? types.get(0).getObject() : null;
+	}
+
+}
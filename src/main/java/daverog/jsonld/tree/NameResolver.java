@@ -1,79 +1,141 @@
 package daverog.jsonld.tree;
 
 import com.google.common.collect.*;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.rdf.model.Literal;
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
 import com.hp.hpl.jena.rdf.model.Statement;
 import com.hp.hpl.jena.rdf.model.StmtIterator;
 
-import java.util.Collection;
+import daverog.jsonld.tree.VocabularyTable.Term;
+
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class NameResolver {
 	
-	private final Model model;
-	private final SortedMap<String, TypedResource> mappedResources;
-	private final List<String> prioritisedNamespaces;
-    private Map<String, String> nameOverrides;
+	private final VocabularyTable vocabulary;
+	private final Map<String, TypedResource> mappedResources = Maps.newHashMap();
+	private volatile SortedMap<String, TypedResource> sortedMappedResources;
     private final String rdfResultOntologyPrefix;
 
-	public NameResolver(Model model, List<String> prioritisedNamespaces, Map<String,String> nameOverrides, String rdfResultOntologyPrefix) {
+	//Names are resolved once per URI, as the same predicates and types
+	//are named again and again while a tree is sorted and written
+	private final ConcurrentMap<String, ResolvedName> resolvedNames = Maps.newConcurrentMap();
 
-		checkDuplicateNameOverrides(nameOverrides);
+	//Literals are parsed once per node, as the same values are compared
+	//while a tree is sorted, and written again in every format
+	private final ConcurrentMap<Node, LiteralValue> literalValues = Maps.newConcurrentMap();
 
-		this.model = model;
-        this.nameOverrides = nameOverrides;
-        this.rdfResultOntologyPrefix = rdfResultOntologyPrefix;
-		this.prioritisedNamespaces = Lists.newArrayList(RdfTree.RDF_PREFIX, RdfTree.OWL_PREFIX);
-		this.prioritisedNamespaces.addAll(prioritisedNamespaces);
+	public NameResolver(Model model, List<String> prioritisedNamespaces, Map<String,String> nameOverrides, String rdfResultOntologyPrefix) {
+		this(model, VocabularyTable.fromModel(model, prioritisedNamespaces, nameOverrides), rdfResultOntologyPrefix, true);
+	}
 
-		mappedResources = Maps.newTreeMap();
+	/**
+	 * A resolver that does not register the statements of the model
+	 * has no mapped resources until they are registered one by one.
+	 * Names are resolved with the vocabulary's prefixes, rather than 
+	 * the model's.
+	 */
+	NameResolver(Model model, VocabularyTable vocabulary, String rdfResultOntologyPrefix, boolean registerModel) {
+		this.vocabulary = vocabulary;
+        this.rdfResultOntologyPrefix = rdfResultOntologyPrefix;
 		
-		StmtIterator statements = model.listStatements();
-		while(statements.hasNext()) {
-			Statement statement = statements.next();
-			
-			registerResource(new TypedResource(statement.getSubject(), ResourceType.NONE));
-
-			ResourceType type = ResourceType.NONE;
-			if (statement.getObject().isResource())	{
-				Resource objectResource = statement.getObject().asResource();
-				if (objectResource.getNameSpace() != null && model.getNsURIPrefix(objectResource.getNameSpace()) != null) {
-					type = ResourceType.VOCAB;
-				} else {
-					type = ResourceType.ID;
-				}
-				registerResource(new TypedResource(objectResource, ResourceType.NONE));
+		if (registerModel) {
+			StmtIterator statements = model.listStatements();
+			while(statements.hasNext()) {
+				Statement statement = statements.next();
+				registerStatement(statement.getSubject(), statement.getPredicate(), statement.getObject());
 			}
-			
-			registerResource(new TypedResource(statement.getPredicate(), type));
 		}
 	}
 
-	private void checkDuplicateNameOverrides(Map<String, String> nameOverrides) {
-		Map<String, Collection<String>> inverse = Multimaps.invertFrom(Multimaps.forMap(nameOverrides), HashMultimap.<String, String>create()).asMap();
-		for (Collection collection : inverse.values()) {
-			if (collection.size() > 1)
-				throw new IllegalArgumentException("A name override cannot map to multiple URIs: " + collection);
+	/**
+	 * A copy of the resolver whose mapped resources belong to no model
+	 */
+	private NameResolver(NameResolver nameResolver) {
+		this.vocabulary = nameResolver.vocabulary;
+		this.rdfResultOntologyPrefix = nameResolver.rdfResultOntologyPrefix;
+		for (Map.Entry<String, TypedResource> mappedResource : nameResolver.mappedResources.entrySet()) {
+			mappedResources.put(mappedResource.getKey(), new TypedResource(
+					RdfTreeUtils.detachResource(mappedResource.getValue().getResource()), 
+					mappedResource.getValue().getType()));
 		}
+		literalValues.putAll(nameResolver.literalValues);
+	}
+
+	/**
+	 * A copy of the resolver, detached from the model, for a frozen
+	 * tree. Nothing is registered with the copy, so it is only read,
+	 * and can be shared between threads.
+	 */
+	NameResolver freeze() {
+		return new NameResolver(this);
+	}
+
+	/**
+	 * Maps the names of the subject, predicate and object. 
+	 * A resource keeps the type of the first statement it is
+	 * registered from.
+	 */
+	void registerStatement(Resource subject, Property predicate, RDFNode object) {
+		registerResource(new TypedResource(subject, ResourceType.NONE));
+
+		ResourceType type = ResourceType.NONE;
+		if (object.isResource())	{
+			Resource objectResource = object.asResource();
+			if (vocabulary.getTerm(objectResource).getNamespacePrefix() != null) {
+				type = ResourceType.VOCAB;
+			} else {
+				type = ResourceType.ID;
+			}
+			registerResource(new TypedResource(objectResource, ResourceType.NONE));
+		}
+		
+		registerResource(new TypedResource(predicate, type));
+	}
+
+	/**
+	 * The value of the literal, parsed the first time it is asked for
+	 */
+	LiteralValue getLiteralValue(Literal literal) {
+		Node node = literal.asNode();
+		LiteralValue value = literalValues.get(node);
+		if (value == null) {
+			value = new LiteralValue(literal);
+			LiteralValue existing = literalValues.putIfAbsent(node, value);
+			if (existing != null) value = existing;
+		}
+		return value;
+	}
+
+	void registerNode(RDFNode node) {
+		if (node.isResource()) registerResource(new TypedResource(node.asResource(), ResourceType.NONE));
 	}
 
     private void registerResource(TypedResource resource) {
-		if (resource.getResource().getNameSpace() != null && !resource.getResource().getNameSpace().equals(rdfResultOntologyPrefix)) {
-			String currentNamespace = resource.getResource().getNameSpace();
-			String prefix = model.getNsURIPrefix(currentNamespace);
-			if (prefix != null && currentNamespace != null) {
-				TypedResource existingResource = mappedResources.get(resource.getResource().getLocalName());
+		if (!resolvedNames.isEmpty()) resolvedNames.clear();
+		sortedMappedResources = null;
+
+		Term term = resource.getTerm();
+		String currentNamespace = term.getNamespace();
+		if (currentNamespace != null && !currentNamespace.equals(rdfResultOntologyPrefix)) {
+			String prefix = term.getNamespacePrefix();
+			if (prefix != null) {
+				TypedResource existingResource = mappedResources.get(term.getLocalName());
 				if (existingResource == null) {
-					mappedResources.put(resource.getResource().getLocalName(), resource);
+					mappedResources.put(term.getLocalName(), resource);
 				} else {
 					if (!resource.getResource().equals(existingResource.getResource())) {
 						boolean existingIsHigherPriorityThanCurrent= false;
-						String existingNamespace = existingResource.getResource().getNameSpace();
-						int priorityOfExistingResource = prioritisedNamespaces.indexOf(existingNamespace);
-						int priorityOfCurrentResource = prioritisedNamespaces.indexOf(currentNamespace);
+						String existingNamespace = existingResource.getTerm().getNamespace();
+						int priorityOfExistingResource = vocabulary.getPriority(existingNamespace);
+						int priorityOfCurrentResource = vocabulary.getPriority(currentNamespace);
 
 						if (priorityOfExistingResource == -1 && priorityOfCurrentResource == -1) {
 							existingIsHigherPriorityThanCurrent = existingNamespace.compareTo(currentNamespace) < 0;
@@ -86,11 +148,11 @@ public class NameResolver {
 						}
 
 						if(existingIsHigherPriorityThanCurrent) {
-							mappedResources.put(prefix + "_" + resource.getResource().getLocalName(), resource);
+							mappedResources.put(prefix + "_" + term.getLocalName(), resource);
 						} else {
-							String currentPrefix = model.getNsURIPrefix(existingNamespace);
-							mappedResources.put(currentPrefix + "_" + existingResource.getResource().getLocalName(), existingResource);
-							mappedResources.put(resource.getResource().getLocalName(), resource);
+							String currentPrefix = existingResource.getTerm().getNamespacePrefix();
+							mappedResources.put(currentPrefix + "_" + existingResource.getTerm().getLocalName(), existingResource);
+							mappedResources.put(term.getLocalName(), resource);
 						}
 					}
 				}
@@ -98,65 +160,137 @@ public class NameResolver {
 		}
 	}
 
+	ResolvedName resolve(Resource resource) {
+		if (resource.isAnon()) return createResolvedName(resource);
+
+		ResolvedName resolvedName = resolvedNames.get(resource.getURI());
+		if (resolvedName == null) {
+			resolvedName = createResolvedName(resource);
+			resolvedNames.put(resource.getURI(), resolvedName);
+		}
+		return resolvedName;
+	}
+
+	private ResolvedName createResolvedName(Resource resource) {
+		Term term = vocabulary.getTerm(resource);
+		return new ResolvedName(
+				resolveName(resource, term), 
+				term.getPrefixedName(), 
+				!resource.isAnon() && mappedResources.get(term.getLocalName()) != null);
+	}
+
 	public String getName(Resource resource) {
+		return resolve(resource).name;
+	}
+
+	/**
+	 * A predicate name, type name or @context key, as the writers
+	 * write it, encoded once for the whole vocabulary
+	 */
+	EncodedName getEncodedName(String name) {
+		return vocabulary.getEncodedName(name);
+	}
+
+	/**
+	 * Whether a resource other than rdf:type is named 'type' too,
+	 * which is the only way two predicates can have the same name
+	 */
+	boolean isTypeNameShared() {
+		TypedResource resource = mappedResources.get("type");
+		return resource != null && !resource.getResource().getURI().equals(RdfTree.RDF_TYPE);
+	}
+
+	private String resolveName(Resource resource, Term term) {
 		if (resource.isAnon()) return "@blank";
 		if (resource.getURI().equals(RdfTree.RDF_TYPE)) return "type";
 
-		TypedResource mappedResource = mappedResources.get(resource.getLocalName());
+		TypedResource mappedResource = mappedResources.get(term.getLocalName());
 		if (mappedResource != null && mappedResource.getResource().equals(resource)) {
-			return resource.getLocalName();
+			return term.getLocalName();
 		}
 		
-		String prefix = getPrefixForResourceUri(resource);
+		String prefix = term.getPrefix();
 		if (prefix != null) {
-			return prefix + "_" + resource.getLocalName();
+			return prefix + "_" + term.getLocalName();
 		} else {
 			return resource.getURI();
 		}
 	}
 
     public String getPrefixedName(Resource resource) {
-        if (resource.isAnon()) return "@blank";
-        if (resource.getURI().equals(RdfTree.RDF_TYPE)) return "type";
-        if (nameOverrides.containsKey(resource.getURI())) return nameOverrides.get(resource.getURI());
-
-        String prefix = getPrefixForResourceUri(resource);
-        if (prefix != null) {
-            return prefix + ":" + resource.getLocalName();
-        } else {
-            return resource.getURI();
-        }
+        return resolve(resource).prefixedName;
     }
 
-	public String getPrefixForResourceUri(Resource resource) {
-		if (resource.getNameSpace().equals(RdfTree.RDF_PREFIX)) return "rdf";
-		if (resource.getNameSpace().equals(RdfTree.OWL_PREFIX)) return "owl";
-        if (nameOverrides.containsKey(resource.getURI())) return null;
+	/**
+	 * The namespace the resource is named in, which is the longest
+	 * prefixed namespace its URI can be split at
+	 */
+	public String getNamespace(Resource resource) {
+		return vocabulary.getTerm(resource).getNamespace();
+	}
 
-		return model.getNsURIPrefix(resource.getNameSpace());
+	public String getPrefixForResourceUri(Resource resource) {
+		return vocabulary.getTerm(resource).getPrefix();
 	}
 
 	public int compareNames(Resource resource, Resource otherResource) {
-		TypedResource mappedResource = mappedResources.get(resource.getLocalName());
-		TypedResource otherMappedResource = mappedResources.get(otherResource.getLocalName());
+		return resolve(resource).compareTo(resolve(otherResource));
+	}
 
-		if (mappedResource == null && otherMappedResource != null) return -1;
-		if (mappedResource != null && otherMappedResource == null) return 1;
+	/**
+	 * The mapped resources by name. Resources are mapped into a hash
+	 * table as they are registered, and only sorted when they are read.
+	 */
+	public SortedMap<String, TypedResource> getMappedResources() {
+		SortedMap<String, TypedResource> sorted = sortedMappedResources;
+		if (sorted == null) {
+			sorted = ImmutableSortedMap.copyOf(mappedResources);
+			sortedMappedResources = sorted;
+		}
+		return sorted;
+	}
 
-		return getName(resource).compareTo(getName(otherResource));
+	public VocabularyTable getVocabulary() {
+		return vocabulary;
 	}
 
-	public SortedMap<String, TypedResource> getMappedResources() {
-		return mappedResources;
+	/**
+	 * The name and prefixed name of a resource, and whether 
+	 * a resource is mapped to its local name, which ranks 
+	 * it after those that are not when names are compared
+	 */
+	static class ResolvedName implements Comparable<ResolvedName> {
+		private final String name;
+		private final String prefixedName;
+		private final boolean mapped;
+
+		private ResolvedName(String name, String prefixedName, boolean mapped) {
+			this.name = name;
+			this.prefixedName = prefixedName;
+			this.mapped = mapped;
+		}
+
+		public int compareTo(ResolvedName other) {
+			if (!mapped && other.mapped) return -1;
+			if (mapped && !other.mapped) return 1;
+
+			return name.compareTo(other.name);
+		}
 	}
 
     protected class TypedResource {
 		private final Resource resource;
 		private final ResourceType type;
+		private final Term term;
 
 		private TypedResource(Resource resource, ResourceType type) {
 			this.resource = resource;
 			this.type = type;
+			this.term = vocabulary.getTerm(resource);
+		}
+
+		private Term getTerm() {
+			return term;
 		}
 
 		public Resource getResource() {
@@ -0,0 +1,102 @@
+package daverog.jsonld.tree;
+
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * The namespaces of a prefix map, held as a trie of their characters,
+ * so that the namespaces a URI starts with are all found in one pass
+ * over the URI.
+ *
+ * A URI is split at the longest namespace that leaves a valid local
+ * name, which is never shorter than the namespace Jena would split it
+ * into. URIs whose Jena namespace has a prefix are split as before,
+ * and URIs that are only matched by a longer namespace are now split
+ * by it too.
+ */
+class NamespaceTrie {
+
+	private final Node root = new Node();
+
+	public NamespaceTrie(Map<String, String> namespacePrefixes) {
+		for (Map.Entry<String, String> namespacePrefix : namespacePrefixes.entrySet()) {
+			add(namespacePrefix.getKey(), namespacePrefix.getValue());
+		}
+	}
+
+	private void add(String namespace, String prefix) {
+		Node node = root;
+		for (int i = 0; i < namespace.length(); i++) {
+			char c = namespace.charAt(i);
+			Node child = node.children.get(c);
+			if (child == null) {
+				child = new Node();
+				node.children.put(c, child);
+			}
+			node = child;
+		}
+		node.namespace = namespace;
+		node.prefix = prefix;
+	}
+
+	/**
+	 * The longest namespace the URI of the resource can be split
+	 * at, or null if no namespace leaves a valid local name
+	 */
+	public Match match(Resource resource) {
+		String uri = resource.getURI();
+		int split = resource.getNameSpace().length();
+		Node longest = null;
+		Node node = root;
+		for (int i = 0; node != null; i++) {
+			if (node.namespace != null && isLocalNameStart(uri, i, split)) longest = node;
+			if (i == uri.length()) break;
+			node = node.children.get(uri.charAt(i));
+		}
+		return longest == null ? null : new Match(longest.namespace, longest.prefix);
+	}
+
+	private static boolean isLocalNameStart(String uri, int index, int split) {
+		if (index == split) return true;
+		return index > split && index < uri.length() && isNCNameStart(uri.charAt(index));
+	}
+
+	/**
+	 * Whether the character can start an XML name without a colon,
+	 * by the ranges of the fifth edition of XML 1.0
+	 */
+	static boolean isNCNameStart(char c) {
+		if (c < 0x80) return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || c == '_';
+		return (c >= 0xC0 && c <= 0xD6) || (c >= 0xD8 && c <= 0xF6) || (c >= 0xF8 && c <= 0x2FF)
+				|| (c >= 0x370 && c <= 0x37D) || (c >= 0x37F && c <= 0x1FFF) || (c >= 0x200C && c <= 0x200D)
+				|| (c >= 0x2070 && c <= 0x218F) || (c >= 0x2C00 && c <= 0x2FEF) || (c >= 0x3001 && c <= 0xD7FF)
+				|| (c >= 0xF900 && c <= 0xFDCF) || (c >= 0xFDF0 && c <= 0xFFFD);
+	}
+
+	static final class Match {
+		private final String namespace;
+		private final String prefix;
+
+		private Match(String namespace, String prefix) {
+			this.namespace = namespace;
+			this.prefix = prefix;
+		}
+
+		public String getNamespace() {
+			return namespace;
+		}
+
+		public String getPrefix() {
+			return prefix;
+		}
+	}
+
+	private static class Node {
+		private final Map<Character, Node> children = Maps.newHashMap();
+		private String namespace;
+		private String prefix;
+	}
+
+}
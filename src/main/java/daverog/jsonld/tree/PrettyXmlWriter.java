@@ -0,0 +1,118 @@
+package daverog.jsonld.tree;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.StringTokenizer;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Writes elements to a StAX writer, pretty printed as dom4j's pretty
+ * print format prints them: each element on a line of its own,
+ * indented by two spaces for each element it is in, an element of
+ * text alone on one line with its text, whose whitespace is trimmed
+ * and collapsed, and an element with no content closed at once.
+ *
+ * An element is only started once its content is known, so its name
+ * and attributes are held until then.
+ */
+class PrettyXmlWriter {
+
+	private static final String INDENT = "  ";
+
+	private final XMLStreamWriter xml;
+
+	private int depth = 0;
+	//Whether the element at each depth has elements in it
+	private final BitSet elementContent = new BitSet();
+
+	private String pendingName;
+	private String[] pendingAttributes = new String[4];
+	private int pendingAttributeCount = 0;
+
+	public PrettyXmlWriter(XMLStreamWriter xml) {
+		this.xml = xml;
+	}
+
+	public void startElement(String name) throws XMLStreamException {
+		if (pendingName != null) writePendingStart(false);
+		if (depth > 0) {
+			elementContent.set(depth - 1);
+			newline(depth);
+		}
+		pendingName = name;
+		elementContent.clear(depth);
+		depth++;
+	}
+
+	public void attribute(String name, String value) throws XMLStreamException {
+		if (pendingName == null) throw new IllegalStateException("Attributes must follow the start of an element");
+		if (value == null) return;
+		if (pendingAttributeCount + 2 > pendingAttributes.length) {
+			pendingAttributes = Arrays.copyOf(pendingAttributes, pendingAttributes.length * 2);
+		}
+		pendingAttributes[pendingAttributeCount++] = name;
+		pendingAttributes[pendingAttributeCount++] = value;
+	}
+
+	/**
+	 * Writes text as the only content of the current element
+	 */
+	public void text(String text) throws XMLStreamException {
+		if (pendingName != null) writePendingStart(false);
+		StringTokenizer tokens = new StringTokenizer(text);
+		boolean first = true;
+		while (tokens.hasMoreTokens()) {
+			if (!first) xml.writeCharacters(" ");
+			characters(tokens.nextToken());
+			first = false;
+		}
+		if (first) xml.writeCharacters("");
+	}
+
+	/**
+	 * Control characters, which XML 1.0 does not allow, are written
+	 * as character references, as dom4j does. Tabs and line breaks 
+	 * are whitespace, so they are never in the text by now.
+	 */
+	private void characters(String text) throws XMLStreamException {
+		int last = 0;
+		int length = text.length();
+		for (int i = 0; i < length; i++) {
+			if (text.charAt(i) >= ' ') continue;
+			if (last < i) xml.writeCharacters(text.substring(last, i));
+			xml.writeEntityRef("#" + (int) text.charAt(i));
+			last = i + 1;
+		}
+		if (last < length) xml.writeCharacters(last == 0 ? text : text.substring(last));
+	}
+
+	public void endElement() throws XMLStreamException {
+		depth--;
+		if (pendingName != null) {
+			writePendingStart(true);
+			return;
+		}
+		if (elementContent.get(depth)) newline(depth);
+		xml.writeEndElement();
+	}
+
+	private void writePendingStart(boolean empty) throws XMLStreamException {
+		if (empty) xml.writeEmptyElement(pendingName);
+		else xml.writeStartElement(pendingName);
+		for (int i = 0; i < pendingAttributeCount; i += 2) {
+			xml.writeAttribute(pendingAttributes[i], pendingAttributes[i + 1]);
+		}
+		pendingName = null;
+		pendingAttributeCount = 0;
+	}
+
+	private void newline(int depth) throws XMLStreamException {
+		xml.writeCharacters("\n");
+		for (int i = 0; i < depth; i++) {
+			xml.writeCharacters(INDENT);
+		}
+	}
+
+}
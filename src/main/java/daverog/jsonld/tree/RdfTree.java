@@ -1,13 +1,20 @@
 package daverog.jsonld.tree;
 
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
 
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.hp.hpl.jena.rdf.model.Model;
 import com.hp.hpl.jena.rdf.model.Property;
 import com.hp.hpl.jena.rdf.model.RDFNode;
 import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
 import com.hp.hpl.jena.rdf.model.Statement;
 
 
@@ -18,8 +25,10 @@ public class RdfTree implements Comparable<RdfTree> {
 	public static final String RDF_TYPE = RDF_PREFIX + "type";
 	public static final String OWL_PREFIX = "http://www.w3.org/2002/07/owl#";
 
+	private static final int ANCESTOR_SEGMENT_LENGTH = 64;
+
 	private final RdfTree parent;
-	private List<RdfTree> children = Lists.newArrayList();
+	private final List<RdfTree> children;
 	
 	private final boolean inverse;
 	private final boolean list;
@@ -29,6 +38,24 @@ public class RdfTree implements Comparable<RdfTree> {
 	private final NameResolver nameResolver;
 	private Resource type;
 	private boolean constructed = false;
+	private boolean childrenOrdered = false;
+	private boolean canonical = false;
+	private TreeExpander expander;
+	
+	//Indexes that let the pruning rules in addChild be checked without
+	//walking the whole tree. Every tree knows its root and its depth below
+	//it. Every so many levels, a tree holds the nodes of the segment of its
+	//path that ends with it, and the tree above that segment, so that its
+	//path from the root can be searched a segment at a time. The root holds
+	//the nodes of its list items and the minimum depth of every node in the
+	//whole tree. The depths are concurrent so that list items can be
+	//expanded in parallel.
+	private final RdfTree root;
+	private final int depthInTree;
+	private Set<RDFNode> segmentNodes;
+	private RdfTree aboveSegment;
+	private final Set<RDFNode> listItemNodes;
+	private final ConcurrentMap<RDFNode, Integer> minimumDepths;
 	
 	public RdfTree(Model model, NameResolver nameResolver, RdfTree parent, RDFNode node, Property predicate, boolean inverse) {
 		this.model = model;
@@ -37,27 +64,100 @@ public class RdfTree implements Comparable<RdfTree> {
 		this.node = node;
 		this.predicate = predicate;
 		this.inverse = inverse;
+		children = Lists.newArrayList();
 		list = false;
+		root = parent.root;
+		depthInTree = parent.depthInTree + 1;
+		listItemNodes = null;
+		minimumDepths = null;
+		recordMinimumDepth();
 	}
 	
 	public RdfTree(Model model, NameResolver nameResolver, RDFNode rootNode) {
 		this.model = model;
 		this.nameResolver = nameResolver;
 		this.node = rootNode;
+		children = Lists.newArrayList();
 		list = false;
 		predicate = null;
 		inverse = false;
 		parent = null;
+		root = this;
+		depthInTree = 0;
+		listItemNodes = Collections.emptySet();
+		minimumDepths = Maps.newConcurrentMap();
+		recordMinimumDepth();
 	}
 
 	public RdfTree(Model model, NameResolver nameResolver) {
 		this.model = model;
 		this.nameResolver = nameResolver;
+		children = Lists.newArrayList();
 		this.list = true;
 		predicate = null;
 		inverse = false;
 		parent = null;
 		node = null;
+		root = this;
+		depthInTree = 0;
+		listItemNodes = Sets.newHashSet();
+		minimumDepths = Maps.newConcurrentMap();
+	}
+
+	/**
+	 * For trees whose state is held elsewhere, which override
+	 * the accessors and cannot be modified
+	 */
+	RdfTree(NameResolver nameResolver) {
+		this.nameResolver = nameResolver;
+		model = null;
+		children = null;
+		list = false;
+		predicate = null;
+		inverse = false;
+		parent = null;
+		node = null;
+		root = null;
+		depthInTree = 0;
+		listItemNodes = null;
+		minimumDepths = null;
+		constructed = true;
+	}
+	
+	private void recordMinimumDepth() {
+		if (node == null) return;
+		ConcurrentMap<RDFNode, Integer> minimumDepths = root.minimumDepths;
+		Integer minimumDepth = minimumDepths.putIfAbsent(node, depthInTree);
+		while (minimumDepth != null && minimumDepth > depthInTree 
+				&& !minimumDepths.replace(node, minimumDepth, depthInTree)) {
+			minimumDepth = minimumDepths.get(node);
+		}
+	}
+
+	/**
+	 * Whether a tree holds the nodes of the segment of its path that ends
+	 * with it. The path ends at the list, or the root if there is no list.
+	 */
+	private boolean endsSegment() {
+		return depthInTree > 0 && depthInTree % ANCESTOR_SEGMENT_LENGTH == 0;
+	}
+
+	/**
+	 * The nodes of the segment of the path that ends with this tree,
+	 * worked out the first time they are needed
+	 */
+	private Set<RDFNode> getSegmentNodes() {
+		if (segmentNodes == null) {
+			Set<RDFNode> nodes = Sets.newHashSetWithExpectedSize(ANCESTOR_SEGMENT_LENGTH);
+			RdfTree tree = this;
+			for (int i = 0; i < ANCESTOR_SEGMENT_LENGTH && tree != null && tree.getNode() != null; i++) {
+				nodes.add(tree.getNode());
+				tree = tree.parent;
+			}
+			aboveSegment = tree;
+			segmentNodes = nodes;
+		}
+		return segmentNodes;
 	}
 
 	public void addChild(Statement statement) {
@@ -87,17 +187,34 @@ public class RdfTree implements Comparable<RdfTree> {
 		//Rule 5: Do not follow inverse properties if they lead to nodes that are
 		//        closer to the root (but not necessarily a parent)
 		//This prevents 'reference data' from forming join-points in RDF lists
-		int depthOfPotentialChild = getDepth()+1;
-		boolean hasSiblingOrAncestorSibling = depthOfPotentialChild >= getDepthInTree(node);
-		if (parent != null && getPredicate() != null && inverse && hasSiblingOrAncestorSibling) return;
+		if (parent != null && getPredicate() != null && inverse) {
+			int depthOfPotentialChild = getDepth()+1;
+			boolean hasSiblingOrAncestorSibling = depthOfPotentialChild >= getDepthInTree(node);
+			if (hasSiblingOrAncestorSibling) return;
+		}
 		
 		children.add(new RdfTree(model, nameResolver, this, childNode, 
 				statement.getPredicate(), inverse));
+		childrenChanged();
 	}
 
 	public void addListItem(Resource listItem) {
 		children.add(new RdfTree(model, nameResolver, this, listItem, 
 				null, false));
+		listItemNodes.add(listItem);
+		childrenChanged();
+	}
+
+	/**
+	 * A tree that gains a child is no longer canonical, and nor are its
+	 * parents, whose order may depend on whether it has children. A
+	 * canonical tree only has canonical children, so the parents above
+	 * one that is not canonical are not either.
+	 */
+	private void childrenChanged() {
+		for (RdfTree tree = this; tree != null && tree.canonical; tree = tree.parent) {
+			tree.canonical = false;
+		}
 	}
 
 	public Property getPredicate() {
@@ -110,54 +227,94 @@ public class RdfTree implements Comparable<RdfTree> {
 
 
 	public List<RdfTree> getChildren() {
+		if (isLazy() && !childrenOrdered) {
+			ensureConstructed();
+			if (!list) ChildSortKey.sort(children);
+			childrenOrdered = true;
+		}
 		return children;
 	}
+
+	/**
+	 * Makes this root, and every tree below it, construct itself
+	 * using the expander when it is first read. The children of
+	 * a lazy tree are canonical as soon as they are read. Lazy 
+	 * trees are not safe for use by more than one thread.
+	 */
+	void setExpander(TreeExpander expander) {
+		this.expander = expander;
+	}
+
+	private boolean isLazy() {
+		return root != null && root.expander != null;
+	}
+
+	private void ensureConstructed() {
+		if (!constructed && node != null && isLazy()) root.expander.expand(this);
+	}
+
+	/**
+	 * Drops the children of a tree that has been copied into
+	 * compact storage, so that they can be garbage collected
+	 */
+	void releaseChildren() {
+		children.clear();
+	}
 	
 	public DirectionalPredicate getDirectionalPredicate() {
-		return new DirectionalPredicate(getPredicate(), inverse);
+		return new DirectionalPredicate(getPredicate(), isInverse());
 	}
 
 	public void setType(Resource type) {
 		this.type = type;
 	}
 
+	/**
+	 * Whether the node is that of this tree's parent, or of its parents
+	 * in turn, up to but not including the list. The parents are compared
+	 * one by one until a tree holding its segment of the path is reached,
+	 * and each segment above that is searched at once.
+	 */
 	public boolean hasParentWithNode(RDFNode node) {
-		if (parent == null) return false;
-		if (parent.getNode() == null) return false;
-		if (parent.getNode().equals(node)) return true;
-		return parent.hasParentWithNode(node);
+		RdfTree tree = parent;
+		while (tree != null && tree.getNode() != null) {
+			if (tree.endsSegment()) {
+				if (tree.getSegmentNodes().contains(node)) return true;
+				tree = tree.aboveSegment;
+			} else {
+				if (tree.getNode().equals(node)) return true;
+				tree = tree.parent;
+			}
+		}
+		return false;
 	}
 	
 	public boolean hasListRootWithNode(RDFNode node) {
 		if (parent == null) return false;
-		if (parent.isList()) return parent.hasListItemWithNode(node);
-		return parent.hasListRootWithNode(node);
+		return root.hasListItemWithNode(node);
 	}
 	
 	private int getDepthInTree(RDFNode node) {
-		return getRoot().getDepth(node);
+		Integer minimumDepth = root.minimumDepths.get(node);
+		return minimumDepth == null ? -1 : minimumDepth;
 	}
 
+	/**
+	 * The least depth the node is found at, searched breadth first,
+	 * a level at a time, so that nothing below it is walked. The
+	 * children are read as they are, rather than sorted.
+	 */
 	private int getDepth(RDFNode node) {
-		int depth = -1;
-		if (getNode() != null && getNode().equals(node)) depth = 0;
-		else {
-			for (RdfTree child : children) {
-				int depthInChild = child.getDepth(node);
-				if (depthInChild != -1) {
-					if (depth == -1) depth = depthInChild + 1;
-					else if (depthInChild < depth) {
-						depth = depthInChild + 1;
-					}
-				}
+		List<RdfTree> level = Collections.singletonList(this);
+		for (int depth = 0; !level.isEmpty(); depth++) {
+			List<RdfTree> nextLevel = Lists.newArrayList();
+			for (RdfTree tree: level) {
+				if (node.equals(tree.getNode())) return depth;
+				nextLevel.addAll(tree.getChildren());
 			}
+			level = nextLevel;
 		}
-		return depth;
-	}
-
-	private RdfTree getRoot() {
-		if (parent == null) return this;
-		return parent.getRoot();
+		return -1;
 	}
 
 	/**
@@ -166,23 +323,44 @@ public class RdfTree implements Comparable<RdfTree> {
 	 */
 	private int getDepth() {
 		if (parent == null) return 1;
-		if (parent.isList()) return 0;
-		return parent.getDepth() + 1;
+		if (root.isList()) return depthInTree - 1;
+		return depthInTree + 1;
 	}
 
 	private boolean hasListItemWithNode(RDFNode node) {
 		if (!list) return false;
-		for (RdfTree childTree: children) {
-			if (childTree.getNode().equals(node)) return true;
-		}
-		return false;
+		return listItemNodes.contains(node);
 	}
 
+	/**
+	 * Sorts the children of this tree, and of every tree below it, into
+	 * canonical order. A tree remembers that it is canonical until it
+	 * gains another child, so canonicalising it again, as each writer
+	 * does, costs nothing. Changes made directly to the list returned
+	 * by getChildren are not noticed.
+	 */
 	public void canonicalise() {
-		for (RdfTree childTree: children) {
-			childTree.canonicalise();
+		if (isLazy() || canonical) return;
+
+		//Each tree that is not canonical, in an order where every tree comes
+		//before the trees below it, so that sorting them in reverse sorts
+		//each tree's children before the tree itself, as a recursion would
+		List<RdfTree> trees = Lists.newArrayList();
+		Deque<RdfTree> pending = new ArrayDeque<RdfTree>();
+		pending.push(this);
+		while (!pending.isEmpty()) {
+			RdfTree tree = pending.pop();
+			trees.add(tree);
+			for (RdfTree childTree: tree.children) {
+				if (!childTree.canonical) pending.push(childTree);
+			}
+		}
+
+		for (int i = trees.size() - 1; i >= 0; i--) {
+			RdfTree tree = trees.get(i);
+			if (!tree.list) ChildSortKey.sort(tree.children);
+			tree.canonical = true;
 		}
-		if (!list) Collections.sort(children);
 	}
 
 
@@ -191,7 +369,7 @@ public class RdfTree implements Comparable<RdfTree> {
 	}
 
 	public boolean isType() {
-		return getPredicate() != null && getPredicate().getURI().equals(RDF_TYPE) && !inverse;
+		return getPredicate() != null && getPredicate().getURI().equals(RDF_TYPE) && !isInverse();
 	}
 
 	public boolean isInverse() {
@@ -199,6 +377,7 @@ public class RdfTree implements Comparable<RdfTree> {
 	}
 
 	public Resource getType() {
+		ensureConstructed();
 		return type;
 	}
 
@@ -209,8 +388,8 @@ public class RdfTree implements Comparable<RdfTree> {
 		if (isType() && !tree.isType()) return -1;
 		if (!isType() && tree.isType()) return 1;
 
-		if (inverse && !tree.inverse) return 1;
-		if (!inverse && tree.inverse) return -1;
+		if (isInverse() && !tree.isInverse()) return 1;
+		if (!isInverse() && tree.isInverse()) return -1;
 
 		if (isLiteral() && !tree.isLiteral()) return -1;
 		if (!isLiteral() && tree.isLiteral()) return 1;
@@ -221,14 +400,24 @@ public class RdfTree implements Comparable<RdfTree> {
 		if (getPredicate().equals(tree.getPredicate())) {
 			if (isLiteral() && tree.isLiteral()) 
 				return RdfTreeUtils.compareObjects(
-						getNode().asLiteral().getValue(),
-						tree.getNode().asLiteral().getValue());
+						getNameResolver().getLiteralValue(getNode().asLiteral()).getValue(),
+						getNameResolver().getLiteralValue(tree.getNode().asLiteral()).getValue());
 			return RdfTreeUtils.compareObjects(
 					getNode(),
 					tree.getNode());
 		}
 		
-		return nameResolver.compareNames(getPredicate(), tree.getPredicate());
+		return getNameResolver().compareNames(getPredicate(), tree.getPredicate());
+	}
+
+	/**
+	 * An immutable, canonical snapshot of this tree, with the same read
+	 * API, that holds no reference to the model. A frozen tree can be
+	 * cached, and written by any number of threads at once. Freezing
+	 * a frozen tree returns it.
+	 */
+	public RdfTree freeze() {
+		return CompactTreeStorage.freeze(this);
 	}
 
 	public String asXml() {
@@ -240,7 +429,15 @@ public class RdfTree implements Comparable<RdfTree> {
 	}
 	
 	public String asJson() {
-		return new RdfTreeJsonWriter().asJson(this);
+		return RdfTreeJsonWriter.PRETTY.asJson(this);
+	}
+
+	public String asJson(RdfTreeJsonWriter writer) {
+		return writer.asJson(this);
+	}
+
+	public byte[] asCbor() {
+		return new RdfTreeCborWriter().asCbor(this);
 	}
 
 	public boolean isList() {
@@ -252,7 +449,9 @@ public class RdfTree implements Comparable<RdfTree> {
 	}
 
 	public boolean isChildlessResource() {
-		return node.isResource() && children.isEmpty();
+		if (!getNode().isResource()) return false;
+		ensureConstructed();
+		return children.isEmpty();
 	}
 
 	public boolean isRoot() {
@@ -260,7 +459,7 @@ public class RdfTree implements Comparable<RdfTree> {
 	}
 
 	public boolean isEmpty() {
-		return children.isEmpty() && node == null;
+		return getChildren().isEmpty() && getNode() == null;
 	}
 
 	/**
@@ -280,7 +479,7 @@ public class RdfTree implements Comparable<RdfTree> {
 	 * or not.
 	 */
 	public int getDepthOf(String uri) {
-		return getDepth(model.createResource(uri));
+		return getDepth(ResourceFactory.createResource(uri));
 	}
 
 	/**
@@ -288,12 +487,19 @@ public class RdfTree implements Comparable<RdfTree> {
 	 * decendents have been constructed
 	 */
 	public boolean isFullyConstructed() {
-		if (children.isEmpty()) return constructed;
-		boolean fullyConstructed = true;
-		for (RdfTree childTree: children) {
-			if (!childTree.isFullyConstructed()) fullyConstructed = false;
+		Deque<RdfTree> trees = new ArrayDeque<RdfTree>();
+		trees.push(this);
+		while (!trees.isEmpty()) {
+			RdfTree tree = trees.pop();
+			if (tree.children.isEmpty()) {
+				if (!tree.constructed) return false;
+			} else {
+				for (RdfTree childTree: tree.children) {
+					trees.push(childTree);
+				}
+			}
 		}
-		return fullyConstructed;
+		return true;
 	}
 
 	/**
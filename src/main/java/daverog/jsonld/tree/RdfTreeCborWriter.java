@@ -0,0 +1,89 @@
+package daverog.jsonld.tree;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes trees as CBOR, with the same JSON-LD structure as
+ * RdfTreeJsonWriter, including @id, @type, @reverse and @context.
+ * Repeated names and URIs are written as string references, so
+ * they are only encoded once in each document.
+ *
+ * Writers hold no state between calls, so one writer can be
+ * shared by any number of threads.
+ */
+public class RdfTreeCborWriter {
+
+	private final String contextUrl;
+
+	public RdfTreeCborWriter() {
+		this(null);
+	}
+
+	/**
+	 * When a context URL is given, the @context of the document is
+	 * that URL, rather than a map of every name in the tree
+	 */
+	public RdfTreeCborWriter(String contextUrl) {
+		this.contextUrl = contextUrl;
+	}
+
+	public String getContextUrl() {
+		return contextUrl;
+	}
+
+	public byte[] asCbor(RdfTree tree) {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		try {
+			asCbor(tree, stream);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to write CBOR to a byte array", e);
+		}
+		return stream.toByteArray();
+	}
+
+	/**
+	 * Writes the CBOR to the stream as the tree is walked,
+	 * without closing it
+	 */
+	public void asCbor(RdfTree tree, OutputStream stream) throws IOException {
+		new RdfTreeEmitter(sink(stream)).emit(tree);
+	}
+
+	/**
+	 * A sink that writes the CBOR of one tree to the stream, so that
+	 * it can be written in the same walk as other formats
+	 */
+	public RdfTreeSink sink(OutputStream stream) {
+		return new CborWalker(new CborEmitter(new BufferedOutputStream(stream)));
+	}
+
+	private class CborWalker extends JsonLdWalker {
+
+		private final CborEmitter cbor;
+
+		public CborWalker(CborEmitter cbor) {
+			super(cbor);
+			this.cbor = cbor;
+		}
+
+		@Override
+		public void begin(RdfTree tree) throws IOException {
+			if (!tree.isEmpty()) cbor.beginDocument();
+			super.begin(tree);
+		}
+
+		@Override
+		protected void writeContext(RdfTree tree) throws IOException {
+			if (contextUrl != null) {
+				cbor.value(contextUrl);
+			} else {
+				writeContext(getContext(tree), tree.getNameResolver(), cbor);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,294 @@
+package daverog.jsonld.tree;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.hp.hpl.jena.rdf.model.Property;
+
+/**
+ * Walks a tree in canonical order, one event at a time, keeping the
+ * trees it is inside on a stack of its own rather than on the call
+ * stack, so that trees of any depth can be written.
+ *
+ * The root, each list item and each child resource that has children
+ * of its own is a node, which is entered, then exited once everything
+ * below it has been walked. The children of a node are walked in
+ * groups of the same predicate and direction, and each literal or
+ * childless resource in a group is a leaf. The items of a list are
+ * entered one after another, without a group.
+ *
+ * A cursor grouped by predicate gathers every child with the same
+ * predicate and direction into the group where the first of them
+ * appears, as JSON-LD does. Otherwise a group is a run of adjacent
+ * children, and the children are walked in exactly canonical order.
+ *
+ * The frames of the stack, and the arrays that order the children
+ * of each node, are reused as the cursor goes deeper and back, so
+ * the walk itself allocates nothing more than the trees it reads.
+ */
+public class RdfTreeCursor {
+
+	public enum Event {
+		ENTER_NODE, ENTER_GROUP, LEAF, EXIT_GROUP, EXIT_NODE
+	}
+
+	private final boolean groupedByPredicate;
+	private final List<Frame> frames = Lists.newArrayList();
+	private int depth = -1;
+
+	//The group of each predicate of a node, while
+	//the children of that node are ordered
+	private final Map<Property, Integer> forwardGroups = Maps.newHashMap();
+	private final Map<Property, Integer> inverseGroups = Maps.newHashMap();
+
+	private Event event;
+	private RdfTree current;
+	private int currentDepth;
+	private boolean skipped;
+
+	public RdfTreeCursor(RdfTree tree) {
+		this(tree, false);
+	}
+
+	/**
+	 * Canonicalises the tree, which must not change while it is walked
+	 */
+	public RdfTreeCursor(RdfTree tree, boolean groupedByPredicate) {
+		this.groupedByPredicate = groupedByPredicate;
+		tree.canonicalise();
+		current = tree;
+	}
+
+	public boolean hasNext() {
+		return event == null || depth >= 0;
+	}
+
+	public Event next() {
+		if (!hasNext()) throw new IllegalStateException("The whole tree has been walked");
+
+		if (event == null) return enter(current);
+		if (event == Event.ENTER_NODE && !skipped) frames.get(depth).prepare(current);
+		skipped = false;
+
+		Frame frame = frames.get(depth);
+		if (frame.list) {
+			if (frame.position < frame.childCount) return enter(frame.children.get(frame.position++));
+			return exit(frame);
+		}
+
+		if (frame.inGroup) {
+			if (frame.position < frame.groupStarts[frame.group + 1]) {
+				RdfTree child = frame.children.get(frame.order[frame.position++]);
+				if (isNode(child)) return enter(child);
+				return event(Event.LEAF, child, depth + 1);
+			}
+			frame.inGroup = false;
+			frame.group++;
+			return event(Event.EXIT_GROUP, frame.getFirstOfGroup(frame.group - 1), depth);
+		}
+
+		if (frame.group < frame.groupCount) {
+			frame.inGroup = true;
+			return event(Event.ENTER_GROUP, frame.getFirstOfGroup(frame.group), depth);
+		}
+		return exit(frame);
+	}
+
+	/**
+	 * Straight after a node or group has been entered, skips
+	 * everything below it. The node or group is not then exited,
+	 * and the children of a node that is skipped are never read.
+	 */
+	public void skip() {
+		if (event == Event.ENTER_NODE) {
+			depth--;
+		} else if (event == Event.ENTER_GROUP) {
+			Frame frame = frames.get(depth);
+			frame.position = frame.groupStarts[frame.group + 1];
+			frame.inGroup = false;
+			frame.group++;
+		} else {
+			throw new IllegalStateException("Only a node or group that has just been entered can be skipped");
+		}
+		skipped = true;
+	}
+
+	public Event getEvent() {
+		return event;
+	}
+
+	/**
+	 * The node entered or exited, the leaf, or, for a group,
+	 * the first child in the group
+	 */
+	public RdfTree getTree() {
+		return current;
+	}
+
+	/**
+	 * The depth of the node or leaf, where the tree the cursor
+	 * was created for is 0, or, for a group, of the node it is in
+	 */
+	public int getDepth() {
+		return currentDepth;
+	}
+
+	/**
+	 * The number of children in the group entered or exited
+	 */
+	public int getGroupSize() {
+		if (event != Event.ENTER_GROUP && event != Event.EXIT_GROUP)
+			throw new IllegalStateException("Not at a group");
+		Frame frame = frames.get(depth);
+		int group = event == Event.ENTER_GROUP ? frame.group : frame.group - 1;
+		return frame.groupStarts[group + 1] - frame.groupStarts[group];
+	}
+
+	/**
+	 * Whether, in the node of the group entered or exited, the children
+	 * of some predicate and direction are in more than one group, which
+	 * is only ever so for a cursor not grouped by predicate
+	 */
+	public boolean isPredicateSplit() {
+		if (event != Event.ENTER_GROUP && event != Event.EXIT_GROUP)
+			throw new IllegalStateException("Not at a group");
+		return frames.get(depth).predicateSplit;
+	}
+
+	public boolean isGroupedByPredicate() {
+		return groupedByPredicate;
+	}
+
+	private boolean isNode(RdfTree child) {
+		return child.getNode().isResource() && !child.isChildlessResource();
+	}
+
+	private Event enter(RdfTree tree) {
+		depth++;
+		if (depth == frames.size()) frames.add(new Frame());
+		frames.get(depth).reset();
+		return event(Event.ENTER_NODE, tree, depth);
+	}
+
+	private Event exit(Frame frame) {
+		RdfTree tree = frame.tree;
+		frame.tree = null;
+		frame.children = null;
+		return event(Event.EXIT_NODE, tree, depth--);
+	}
+
+	private Event event(Event event, RdfTree tree, int depth) {
+		this.event = event;
+		this.current = tree;
+		this.currentDepth = depth;
+		return event;
+	}
+
+	private class Frame {
+		private RdfTree tree;
+		private List<RdfTree> children;
+		private int childCount;
+		private boolean list;
+
+		//The children, by index, in the order they are walked,
+		//and where in that order each group starts
+		private int[] order = new int[8];
+		private int[] groupStarts = new int[9];
+		private int[] groupOfChild = new int[8];
+		private int groupCount;
+		private boolean predicateSplit;
+
+		private int group;
+		private int position;
+		private boolean inGroup;
+
+		private void reset() {
+			tree = null;
+			children = null;
+			childCount = 0;
+			list = false;
+			groupCount = 0;
+			predicateSplit = false;
+			group = 0;
+			position = 0;
+			inGroup = false;
+		}
+
+		private void prepare(RdfTree tree) {
+			this.tree = tree;
+			children = tree.getChildren();
+			childCount = children.size();
+			list = tree.isList();
+			if (list || childCount == 0) return;
+
+			if (order.length < childCount) {
+				order = new int[childCount];
+				groupOfChild = new int[childCount];
+				groupStarts = new int[childCount + 1];
+			}
+			if (groupedByPredicate) {
+				groupByPredicate();
+			} else {
+				groupAdjacent();
+			}
+		}
+
+		private void groupAdjacent() {
+			RdfTree previous = null;
+			for (int child = 0; child < childCount; child++) {
+				RdfTree childTree = children.get(child);
+				if (previous == null || previous.isInverse() != childTree.isInverse()
+						|| !previous.getPredicate().equals(childTree.getPredicate())) {
+					Map<Property, Integer> groups = childTree.isInverse() ? inverseGroups : forwardGroups;
+					if (groups.put(childTree.getPredicate(), groupCount) != null) predicateSplit = true;
+					groupStarts[groupCount++] = child;
+				}
+				order[child] = child;
+				previous = childTree;
+			}
+			groupStarts[groupCount] = childCount;
+			forwardGroups.clear();
+			inverseGroups.clear();
+		}
+
+		/**
+		 * Orders the children by group, keeping their canonical
+		 * order within each group, with a counting sort
+		 */
+		private void groupByPredicate() {
+			Arrays.fill(groupStarts, 0, childCount + 1, 0);
+			for (int child = 0; child < childCount; child++) {
+				RdfTree childTree = children.get(child);
+				Map<Property, Integer> groups = childTree.isInverse() ? inverseGroups : forwardGroups;
+				Integer group = groups.get(childTree.getPredicate());
+				if (group == null) {
+					group = groupCount++;
+					groups.put(childTree.getPredicate(), group);
+				}
+				groupOfChild[child] = group;
+				groupStarts[group + 1]++;
+			}
+			forwardGroups.clear();
+			inverseGroups.clear();
+
+			for (int group = 0; group < groupCount; group++) {
+				groupStarts[group + 1] += groupStarts[group];
+			}
+			for (int child = 0; child < childCount; child++) {
+				order[groupStarts[groupOfChild[child]]++] = child;
+			}
+			for (int group = groupCount; group > 0; group--) {
+				groupStarts[group] = groupStarts[group - 1];
+			}
+			groupStarts[0] = 0;
+		}
+
+		private RdfTree getFirstOfGroup(int group) {
+			return children.get(order[groupStarts[group]]);
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package daverog.jsonld.tree;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+import daverog.jsonld.tree.RdfTreeCursor.Event;
+
+/**
+ * Canonicalises and walks a tree once, telling each of its sinks of
+ * every event, so that a tree can be written in several formats at
+ * the cost of one walk. For example, to render JSON-LD and HTML:
+ *
+ * new RdfTreeEmitter(RdfTreeJsonWriter.PRETTY.sink(json),
+ *         new RdfTreeXmlWriter().htmlSink(relativeUrlBase, html)).emit(tree);
+ *
+ * The children of each node are grouped by predicate only if every
+ * sink would rather they were. What a sink skips, the others are
+ * still told of, and only what every sink skips is not walked.
+ */
+public class RdfTreeEmitter {
+
+	private final List<RdfTreeSink> sinks;
+
+	public RdfTreeEmitter(RdfTreeSink... sinks) {
+		this(Arrays.asList(sinks));
+	}
+
+	public RdfTreeEmitter(List<RdfTreeSink> sinks) {
+		this.sinks = ImmutableList.copyOf(sinks);
+	}
+
+	public List<RdfTreeSink> getSinks() {
+		return sinks;
+	}
+
+	public void emit(RdfTree tree) throws IOException {
+		tree.canonicalise();
+		for (RdfTreeSink sink: sinks) {
+			sink.begin(tree);
+		}
+		if (!tree.isEmpty()) walk(tree);
+		for (RdfTreeSink sink: sinks) {
+			sink.end(tree);
+		}
+	}
+
+	private void walk(RdfTree tree) throws IOException {
+		boolean groupedByPredicate = true;
+		for (RdfTreeSink sink: sinks) {
+			groupedByPredicate &= sink.isGroupedByPredicate();
+		}
+
+		RdfTreeCursor cursor = new RdfTreeCursor(tree, groupedByPredicate);
+		int sinkCount = sinks.size();
+		//The node or group each sink is skipping, by the
+		//event it was entered with and its depth
+		Event[] skippedEvents = new Event[sinkCount];
+		int[] skippedDepths = new int[sinkCount];
+
+		while (cursor.hasNext()) {
+			Event event = cursor.next();
+			int depth = cursor.getDepth();
+			int skipping = 0;
+			for (int i = 0; i < sinkCount; i++) {
+				if (skippedEvents[i] != null) {
+					if (isExitOf(skippedEvents[i], event) && skippedDepths[i] == depth) {
+						skippedEvents[i] = null;
+					} else {
+						skipping++;
+					}
+				} else if (sinks.get(i).event(cursor)) {
+					if (event != Event.ENTER_NODE && event != Event.ENTER_GROUP) {
+						throw new IllegalStateException("Only a node or group that has just been entered can be skipped");
+					}
+					skippedEvents[i] = event;
+					skippedDepths[i] = depth;
+					skipping++;
+				}
+			}
+
+			//The exit of what is skipped here never comes if the cursor skips it,
+			//while a sink skipping something it is in still waits for that
+			if (skipping == sinkCount && (event == Event.ENTER_NODE || event == Event.ENTER_GROUP)) {
+				cursor.skip();
+				for (int i = 0; i < sinkCount; i++) {
+					if (skippedEvents[i] == event && skippedDepths[i] == depth) skippedEvents[i] = null;
+				}
+			}
+		}
+	}
+
+	private static boolean isExitOf(Event entered, Event event) {
+		return entered == Event.ENTER_NODE ? event == Event.EXIT_NODE : event == Event.EXIT_GROUP;
+	}
+
+}
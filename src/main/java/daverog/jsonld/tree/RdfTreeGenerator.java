@@ -1,14 +1,43 @@
 package daverog.jsonld.tree;
 
 import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.*;
 import com.hp.hpl.jena.rdf.model.*;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class RdfTreeGenerator {
 
+    //Children are added in an order that depends on how the model is
+    //queried, so they are registered with the NameResolver in their own
+    private static final Comparator<RdfTree> REGISTRATION_ORDER = new Comparator<RdfTree>() {
+        public int compare(RdfTree first, RdfTree second) {
+            if (first.isInverse() != second.isInverse()) return first.isInverse() ? 1 : -1;
+            int comparison = first.getPredicate().getURI().compareTo(second.getPredicate().getURI());
+            if (comparison != 0) return comparison;
+            return first.getNode().toString().compareTo(second.getNode().toString());
+        }
+    };
+
     private final String rdfResultOntologyPrefix;
+    private boolean indexed = false;
+    private int maxListLength = 0;
+    private ExecutorService listExpansionExecutor;
+    private boolean compact = false;
+    private boolean lazy = false;
+    private boolean namesFromTreeOnly = false;
+
+    //Vocabulary tables are shared by the trees generated with the same prefixes,
+    //prioritised namespaces and name overrides, so that names are only worked out once
+    private final Cache<List<Object>, VocabularyTable> vocabularies = CacheBuilder.newBuilder()
+        .maximumSize(16)
+        .build();
 
     enum TreeType {
         UNKNOWN,
@@ -24,6 +53,77 @@ public class RdfTreeGenerator {
         this.rdfResultOntologyPrefix = rdfResultOntologyPrefix;
     }
 
+    /**
+     * When indexed, the model is scanned once into an adjacency index
+     * before the tree is built, rather than being queried for every
+     * resource that is expanded. This is faster for large models, at
+     * the cost of holding the index in memory while the tree is built.
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    /**
+     * Lists with more items than the maximum are truncated to their
+     * first maxListLength items. A linked list described by result:next
+     * is only followed as far as the maximum. 0, the default, means
+     * lists are not limited.
+     */
+    public void setMaxListLength(int maxListLength) {
+        if (maxListLength < 0)
+            throw new IllegalArgumentException("The maximum list length cannot be negative: " + maxListLength);
+        this.maxListLength = maxListLength;
+    }
+
+    /**
+     * When an executor is supplied, the items of a list result are
+     * expanded concurrently on it, one task per item. Pass 
+     * ForkJoinPool.commonPool() to use all cores. The generated trees
+     * are the same as those expanded on the calling thread, the default.
+     */
+    public void setListExpansionExecutor(ExecutorService listExpansionExecutor) {
+        this.listExpansionExecutor = listExpansionExecutor;
+    }
+
+    /**
+     * Compact trees hold their nodes in arrays shared by the whole tree,
+     * rather than as an object per node, and take a fraction of the heap.
+     * Subtrees that are the same, such as reference data under several
+     * list items, are held once, and written to JSON once per depth.
+     * They are canonical and cannot be modified. The items of a list are
+     * compacted one at a time as they are expanded, unless they are
+     * expanded in parallel.
+     */
+    public void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Lazy trees are constructed from the model as they are read,
+     * rather than in full before they are returned, so callers that
+     * read part of a tree only pay for that part. The parts that are
+     * read are the same as those of a tree constructed in full. The
+     * model must not change while a lazy tree is in use, and lazy
+     * trees are neither compacted nor expanded in parallel.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * By default every statement in the model is registered with the
+     * tree's NameResolver, including those that never appear in the tree.
+     * When set, only the list items, root and statements that are added
+     * to the tree are registered, so the @context only names what is
+     * used. A resource used in several statements keeps the type of
+     * the first of them in the tree, breadth first, taking each tree's
+     * children in order of direction, predicate URI and node. Lazy trees, which need names
+     * before they are constructed, always register the whole model.
+     */
+    public void setNamesFromTreeOnly(boolean namesFromTreeOnly) {
+        this.namesFromTreeOnly = namesFromTreeOnly;
+    }
+
     public RdfTree generateRdfTree(Model model) throws RdfTreeException {
         return generateRdfTree(model, Lists.<String>newArrayList(), Maps.<String, String>newHashMap());
     }
@@ -37,8 +137,18 @@ public class RdfTreeGenerator {
     }
 
     public RdfTree generateRdfTree(Model model, List<String> prioritisedNamespaces, Map<String, String> nameOverrides) throws RdfTreeException {
+        return generateRdfTree(model, getVocabulary(model, prioritisedNamespaces, nameOverrides));
+    }
+
+    /**
+     * Generates a tree named with the vocabulary, whose prefixes are used
+     * in place of the model's. A vocabulary can be shared by any number of
+     * generations, on any number of threads.
+     */
+    public RdfTree generateRdfTree(Model model, VocabularyTable vocabulary) throws RdfTreeException {
 
-        NameResolver nameResolver = new NameResolver(model, prioritisedNamespaces, nameOverrides, rdfResultOntologyPrefix);
+        NameResolver nameResolver = new NameResolver(model, vocabulary, rdfResultOntologyPrefix,
+            !namesFromTreeOnly || lazy);
 
         TreeType treeType = TreeType.UNKNOWN;
 
@@ -105,61 +215,40 @@ public class RdfTreeGenerator {
         }
 
         if (treeType == TreeType.ITEM) {
-            return buildRdfTree(model, new RdfTree(model, nameResolver, firstResult.getObject()));
+            return buildRdfTree(createStatementLookup(model), new RdfTree(model, nameResolver, firstResult.getObject()));
         } else if (treeType == TreeType.LIST) {
-            return buildRdfList(model, nameResolver, generateListItemsUsingResultNext(model, firstResult.getObject().asResource()));
+            return buildRdfList(model, createStatementLookup(model), nameResolver, generateListItemsUsingResultNext(model, firstResult.getObject().asResource()));
         } else if (treeType == TreeType.LIST_WITH_ORDER_BY_PREDICATE) {
-            listItems = sortListAccordingToOrderingPredicate(listItems, orderingPredicate, sortAscending, model);
-            return buildRdfList(model, nameResolver, listItems);
+            listItems = sortListAccordingToOrderingPredicate(listItems, orderingPredicate, sortAscending, model, nameResolver);
+            if (maxListLength > 0 && listItems.size() > maxListLength)
+                listItems = Lists.newArrayList(listItems.subList(0, maxListLength));
+            return buildRdfList(model, createStatementLookup(model), nameResolver, listItems);
         }
 
         throw new RdfTreeException("The tree type could not be identified, the necessary result:this statements were not present");
     }
 
     private List<Resource> sortListAccordingToOrderingPredicate(
-        List<Resource> listItems, final Resource orderingPredicate, final boolean sortAscending, final Model model) {
-        Collections.sort(listItems, new Comparator<Resource>() {
-            public int compare(Resource first, Resource second) {
-                List<RDFNode> firstValues = getAllValuesForSubjectAndPredicate(model, first, orderingPredicate);
-                List<RDFNode> secondValues = getAllValuesForSubjectAndPredicate(model, second, orderingPredicate);
-                return RdfTreeUtils.compareTwoListsOfValues(firstValues, secondValues, new Comparator<RDFNode>() {
-                    public int compare(RDFNode node1, RDFNode node2) {
-                        //The following describes the ordering preference when sorting
-                        //lists of resources by the values of their objects.
-                        //
-                        //The natural (Java) ordering is used, but with a preference
-                        //for types of object (in order of how they would appear in
-                        //a list):
-                        //
-                        //1: Strings
-                        //2: Any other literals (ordered by toString if their types differ)
-                        //3: Resources (ordered by URI)
-
-                        if (node1.isLiteral() && !node2.isLiteral()) return -1;
-                        if (!node1.isLiteral() && node2.isLiteral()) return 1;
-                        if (node1.isLiteral() && node2.isLiteral()) {
-
-                            Object value1 = node1.asLiteral().getValue();
-                            Object value2 = node2.asLiteral().getValue();
-
-                            if (value1 instanceof String && !(value2 instanceof String)) return -1;
-                            if (!(value1 instanceof String) && value2 instanceof String) return 1;
-
-                            return RdfTreeUtils.compareObjects(
-                                node1.asLiteral().getValue(),
-                                node2.asLiteral().getValue());
-                        }
-                        return RdfTreeUtils.compareObjects(node1, node2);
-                    }
-                });
-            }
+        List<Resource> listItems, Resource orderingPredicate, boolean sortAscending, Model model, NameResolver nameResolver) {
+        if (listItems.size() < 2) return listItems;
+
+        ListItemSortKey[] sortKeys = new ListItemSortKey[listItems.size()];
+        for (int i = 0; i < sortKeys.length; i++) {
+            Resource listItem = listItems.get(i);
+            sortKeys[i] = new ListItemSortKey(listItem, getAllValuesForSubjectAndPredicate(model, listItem, orderingPredicate), nameResolver);
+        }
 
+        //The sort is stable, and sorts large lists in parallel
+        Arrays.parallelSort(sortKeys, ListItemSortKey.ORDER);
 
-        });
+        List<Resource> sortedListItems = Lists.newArrayListWithCapacity(sortKeys.length);
+        for (ListItemSortKey sortKey : sortKeys) {
+            sortedListItems.add(sortKey.getItem());
+        }
 
-        if (!sortAscending) Collections.reverse(listItems);
+        if (!sortAscending) Collections.reverse(sortedListItems);
 
-        return listItems;
+        return sortedListItems;
     }
 
     private List<RDFNode> getAllValuesForSubjectAndPredicate(Model model, Resource subject, Resource predicate) {
@@ -179,88 +268,212 @@ public class RdfTreeGenerator {
     }
 
     private List<Resource> generateListItemsUsingResultNext(Model model, Resource firstItem) throws RdfTreeException {
-        Statement next = getNoneOrSingleStatement(model, new SimpleSelector(
-            firstItem,
-            model.getProperty(rdfResultOntologyPrefix + "next"),
-            (RDFNode) null), "too many result:next predicates assigned to " + firstItem.toString());
+        Property nextProperty = model.getProperty(rdfResultOntologyPrefix + "next");
+        List<Resource> listItems = Lists.newArrayList();
+        Set<Resource> visitedItems = Sets.newHashSet();
 
-        if (next != null) {
-            if (!next.getObject().isResource()) {
-                throw new RdfTreeException("result:next cannot be a literal or blank node");
+        Resource item = firstItem;
+        while (item != null) {
+            if (!visitedItems.add(item)) {
+                throw new RdfTreeException("result:next forms a cycle at " + item.toString());
             }
+            listItems.add(item);
+            if (listItems.size() == maxListLength) break;
 
-            return Lists.<Resource>asList(firstItem, generateListItemsUsingResultNext(model, next.getObject().asResource()).toArray(new Resource[0]));
+            Statement next = getNoneOrSingleStatement(model, new SimpleSelector(
+                item,
+                nextProperty,
+                (RDFNode) null), "too many result:next predicates assigned to " + item.toString());
+
+            if (next == null) {
+                item = null;
+            } else if (!next.getObject().isResource()) {
+                throw new RdfTreeException("result:next cannot be a literal or blank node");
+            } else {
+                item = next.getObject().asResource();
+            }
         }
 
-        return Lists.newArrayList(firstItem);
+        return listItems;
     }
 
-    private RdfTree buildRdfTree(Model model, RdfTree root) {
-        while (!root.isFullyConstructed()) {
-            expandRdfTree(model, null, root);
+    private StatementLookup createStatementLookup(Model model) {
+        if (indexed) return new AdjacencyIndex(model);
+        return new ModelStatementLookup(model);
+    }
+
+    private RdfTree buildRdfTree(StatementLookup lookup, RdfTree root) {
+        if (lazy) {
+            root.setExpander(createTreeExpander(lookup));
+            return root;
         }
 
-        return root;
+        Queue<RdfTree> pending = new ArrayDeque<RdfTree>();
+        pending.add(root);
+        expandPendingTrees(lookup, pending);
+
+        return completeRdfTree(root);
     }
 
-    private RdfTree buildRdfList(Model model, NameResolver nameResolver, List<Resource> listItems) throws RdfTreeException {
+    private RdfTree buildRdfList(Model model, StatementLookup lookup, NameResolver nameResolver, List<Resource> listItems) throws RdfTreeException {
         RdfTree list = new RdfTree(model, nameResolver);
 
         for (Resource listItem : listItems) {
             list.addListItem(listItem);
         }
 
-        while (!list.isFullyConstructed()) {
-            for (RdfTree childTree : list.getChildren()) {
-                expandRdfTree(model, list, childTree);
-            }
+        if (lazy) {
+            list.setExpander(createTreeExpander(lookup));
+            return list;
+        }
+
+        if (listExpansionExecutor != null) {
+            expandListItemsInParallel(lookup, list.getChildren());
+        } else if (compact && !namesFromTreeOnly) {
+            return buildCompactRdfList(lookup, list);
+        } else {
+            Queue<RdfTree> pending = new ArrayDeque<RdfTree>(list.getChildren());
+            expandPendingTrees(lookup, pending);
         }
 
-        return list;
+        return completeRdfTree(list);
     }
 
-    private RdfTree expandRdfTree(Model model, RdfTree root, RdfTree current) {
-        if (!current.isConstructed()) {
-            if (current.getNode().isResource()) {
-                if (root == null) root = current;
+    private RdfTree completeRdfTree(RdfTree tree) {
+        if (namesFromTreeOnly) registerNames(tree);
+        if (compact) return CompactTreeStorage.compact(tree);
+        return tree;
+    }
 
-                List<Statement> statements = model.listStatements(new SimpleSelector(
-                    current.getNode().asResource(),
-                    null,
-                    (RDFNode) null)).toList();
+    /**
+     * Registers the names in a tree before it is sorted, breadth first
+     */
+    private void registerNames(RdfTree root) {
+        NameResolver nameResolver = root.getNameResolver();
+        Queue<RdfTree> pending = new ArrayDeque<RdfTree>();
+        if (root.isList()) {
+            for (RdfTree listItemTree : root.getChildren()) {
+                nameResolver.registerNode(listItemTree.getNode());
+            }
+            pending.addAll(root.getChildren());
+        } else {
+            nameResolver.registerNode(root.getNode());
+            pending.add(root);
+        }
 
-                List<Statement> inverseStatements = model.listStatements(new SimpleSelector(
-                    null,
-                    null,
-                    (RDFNode) current.getNode())).toList();
+        while (!pending.isEmpty()) {
+            RdfTree current = pending.remove();
+            if (current.getType() != null) nameResolver.registerNode(current.getType());
+            List<RdfTree> children = Lists.newArrayList(current.getChildren());
+            Collections.sort(children, REGISTRATION_ORDER);
+            for (RdfTree child : children) {
+                if (child.isInverse()) {
+                    nameResolver.registerStatement(child.getNode().asResource(), child.getPredicate(), current.getNode());
+                } else {
+                    nameResolver.registerStatement(current.getNode().asResource(), child.getPredicate(), child.getNode());
+                }
+                pending.add(child);
+            }
+        }
+    }
 
-                inverseStatements.removeAll(statements);
+    /**
+     * Expands and compacts each list item in turn, releasing its
+     * tree once it has been compacted, so that only one item's tree
+     * is held as objects at a time. As the pruning rules do not depend
+     * on the order the items are expanded in, the tree is the same as
+     * one expanded breadth first.
+     */
+    private RdfTree buildCompactRdfList(StatementLookup lookup, RdfTree list) {
+        CompactTreeStorage storage = new CompactTreeStorage(list.getNameResolver(), true);
+        int firstListItem = storage.appendChildren(storage.addRoot(list), list);
+
+        List<RdfTree> listItemTrees = list.getChildren();
+        for (int i = 0; i < listItemTrees.size(); i++) {
+            RdfTree listItemTree = listItemTrees.get(i);
+            Queue<RdfTree> pending = new ArrayDeque<RdfTree>();
+            pending.add(listItemTree);
+            expandPendingTrees(lookup, pending);
+            listItemTree.canonicalise();
+            storage.appendDescendants(firstListItem + i, listItemTree);
+            listItemTree.releaseChildren();
+        }
 
-                List<Statement> types = model.listStatements(new SimpleSelector(
-                    current.getNode().asResource(),
-                    model.getProperty(RdfTree.RDF_TYPE),
-                    (RDFNode) null)).toList();
+        storage.trim();
+        return storage.getTree(0);
+    }
 
-                if (types.size() == 1) {
-                    current.setType(types.get(0).getObject().asResource());
+    /**
+     * Each list item's tree is only ever modified by its own task. The 
+     * pruning rules read the other items' trees solely through the list's
+     * items and the tree's concurrent record of node depths, neither of
+     * which depend on the order the items are expanded in.
+     */
+    private void expandListItemsInParallel(final StatementLookup lookup, List<RdfTree> listItemTrees) throws RdfTreeException {
+        List<Callable<Void>> expansions = Lists.newArrayListWithCapacity(listItemTrees.size());
+        for (final RdfTree listItemTree : listItemTrees) {
+            expansions.add(new Callable<Void>() {
+                public Void call() {
+                    Queue<RdfTree> pending = new ArrayDeque<RdfTree>();
+                    pending.add(listItemTree);
+                    expandPendingTrees(lookup, pending);
+                    return null;
                 }
+            });
+        }
 
-                handleStatements(model, current, statements, false);
-                handleStatements(model, current, inverseStatements, true);
+        try {
+            for (Future<Void> expansion : listExpansionExecutor.invokeAll(expansions)) {
+                expansion.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RdfTreeException("Interrupted while expanding list items", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw new RdfTreeException("Failed to expand list items", e.getCause());
+        }
+    }
 
-            current.markAsConstructed();
-        } else {
-            for (RdfTree childTree : current.getChildren()) {
-                expandRdfTree(model, root, childTree);
+    /**
+     * Expands each pending tree exactly once, queueing its children
+     * as they are added. Trees are therefore expanded breadth first,
+     * one depth at a time, without recursion.
+     */
+    private void expandPendingTrees(StatementLookup lookup, Queue<RdfTree> pending) {
+        while (!pending.isEmpty()) {
+            RdfTree current = pending.remove();
+            expandRdfTree(lookup, current);
+            pending.addAll(current.getChildren());
+        }
+    }
+
+    private TreeExpander createTreeExpander(final StatementLookup lookup) {
+        return new TreeExpander() {
+            public void expand(RdfTree tree) {
+                expandRdfTree(lookup, tree);
             }
+        };
+    }
+
+    private void expandRdfTree(StatementLookup lookup, RdfTree current) {
+        if (current.getNode().isResource()) {
+            Resource resource = current.getNode().asResource();
+
+            RDFNode type = lookup.getSingleType(resource);
+            if (type != null) {
+                current.setType(type.asResource());
+            }
+
+            handleStatements(current, lookup.getStatements(resource));
+            handleStatements(current, lookup.getInverseStatements(resource));
         }
 
-        return current;
+        current.markAsConstructed();
     }
 
-    private void handleStatements(Model model, RdfTree current, List<Statement> statements,
-                                  boolean inverse) {
+    private void handleStatements(RdfTree current, List<Statement> statements) {
         for (Statement statement : statements) {
             if (!statement.getPredicate().getNameSpace().equals(rdfResultOntologyPrefix)) {
                 current.addChild(statement);
@@ -268,6 +481,19 @@ public class RdfTreeGenerator {
         }
     }
 
+    private VocabularyTable getVocabulary(Model model, List<String> prioritisedNamespaces, Map<String, String> nameOverrides) {
+        List<Object> key = Lists.<Object>newArrayList(
+            VocabularyTable.getNamespacePrefixes(model),
+            ImmutableList.copyOf(prioritisedNamespaces),
+            ImmutableMap.copyOf(nameOverrides));
+        VocabularyTable vocabulary = vocabularies.getIfPresent(key);
+        if (vocabulary == null) {
+            vocabulary = VocabularyTable.fromModel(model, prioritisedNamespaces, nameOverrides);
+            vocabularies.put(key, vocabulary);
+        }
+        return vocabulary;
+    }
+
     private List<Statement> getSomeStatements(Model model, SimpleSelector selector, String notFoundMessage) throws RdfTreeException {
         StmtIterator statements = model.listStatements(selector);
 
@@ -1,135 +1,148 @@
 package daverog.jsonld.tree;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.*;
 
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.hp.hpl.jena.rdf.model.Literal;
-import com.hp.hpl.jena.rdf.model.Resource;
+import com.google.common.collect.Table;
 
 import daverog.jsonld.tree.NameResolver.TypedResource;
 
 import javax.annotation.Nullable;
 
 
+/**
+ * Writes trees as JSON-LD, either pretty printed or compact.
+ * Writers hold no state between calls, so one writer can be
+ * shared by any number of threads.
+ */
 public class RdfTreeJsonWriter {
-		
-	public String asJson(RdfTree tree) {
-		tree.canonicalise();
-		
-		if (tree.isEmpty()) {
-			return "{}";
-		} if (tree.isList()) {
-			LinkedHashMap<String, Object> json = Maps.newLinkedHashMap();
-			
-			List<Object> list = Lists.newArrayList();
-			populateJsonArray(tree, list);
-			json.put("results", list);
-			
-            SortedMap<String, SortedMap<String, String>> nameUriMap = Maps.newTreeMap(getPrefixedNameUriMap(tree));
-            nameUriMap.put("results", new TreeMap(ImmutableMap.of("@id", "@graph")));
 
-			json.put("@context", nameUriMap);
-			
-			Gson gson = new GsonBuilder().setPrettyPrinting().create();
-			return gson.toJson(json);
-		} else {
-			LinkedHashMap<String, Object> json = Maps.newLinkedHashMap();
-			populateJsonObject(tree, json);
-			Gson gson = new GsonBuilder()
-				.setPrettyPrinting()
-				.create();
-			return gson.toJson(json);
-		}
+	public static final RdfTreeJsonWriter PRETTY = new RdfTreeJsonWriter(true);
+	public static final RdfTreeJsonWriter COMPACT = new RdfTreeJsonWriter(false);
+
+	private static final int CONTEXT_CACHE_SIZE = 256;
+
+	//Serialised @context blocks, shared by all writers, as 
+	//the same vocabularies are written again and again
+	private static final Cache<ContextKey, String> CONTEXTS = CacheBuilder.newBuilder()
+			.maximumSize(CONTEXT_CACHE_SIZE)
+			.build();
+
+	private final boolean prettyPrinting;
+	private final String contextUrl;
+
+	public RdfTreeJsonWriter() {
+		this(true);
 	}
-	
-	private void populateJsonArray(RdfTree tree, List<Object> array) {
-		for (RdfTree childTree: tree.getChildren()) {
-			LinkedHashMap<String, Object> arrayItem = Maps.newLinkedHashMap();
-			populateJsonObject(childTree, arrayItem);
-			array.add(arrayItem);
-		}
+
+	/**
+	 * Compact JSON has no whitespace between its tokens
+	 */
+	public RdfTreeJsonWriter(boolean prettyPrinting) {
+		this(prettyPrinting, null);
 	}
-	
-	private String getName(RdfTree tree, Resource resource) {
-		String name = tree.getNameResolver().getName(resource);
-		if (name.equals("type")) name = "@type";
-        else name = tree.getNameResolver().getPrefixedName(resource);
-		return name;
+
+	/**
+	 * When a context URL is given, the @context of the document is
+	 * that URL, rather than an inline block of every name in the tree.
+	 * The remote context must define those names, and 'results' for
+	 * list results.
+	 */
+	public RdfTreeJsonWriter(boolean prettyPrinting, String contextUrl) {
+		this.prettyPrinting = prettyPrinting;
+		this.contextUrl = contextUrl;
 	}
 
-	private void populateJsonObject(RdfTree tree, LinkedHashMap<String, Object> json) {
-		json.put("@id", tree.getNode().asResource().getURI());
-		
-		for (List<RdfTree> childTrees: getGroupedChildren(tree).values()) {
-			if (!childTrees.isEmpty()) {
-				RdfTree firstChildTree = childTrees.get(0);
-				
-				if (childTrees.size() == 1) {
-					if (firstChildTree.isChildlessResource()) {
-						if (firstChildTree.getPredicate() != null && firstChildTree.getPredicate().getURI().equals(RdfTree.RDF_TYPE)) {
-							addPredicateValue(json, tree, firstChildTree, Lists.newArrayList(getName(tree, firstChildTree.getNode().asResource())));
-						} else {
-							addPredicateValue(json, tree, firstChildTree, getName(tree, firstChildTree.getNode().asResource()));
-						}
-					} else if (firstChildTree.getNode().isResource()) {
-						LinkedHashMap<String, Object> child = Maps.newLinkedHashMap();
-						populateJsonObject(firstChildTree, child);
-						ArrayList<Object> array = Lists.newArrayList((Object)child);
-						addPredicateValue(json, tree, firstChildTree, array);
-					} else {
-						addPredicateValue(json, tree, firstChildTree, convertToJsonLiteral(firstChildTree.getNode().asLiteral()));
-					}
-				} else {
-					ArrayList<Object> array = Lists.newArrayList();
-					for (RdfTree childTree: childTrees) {
-						if (childTree.isChildlessResource()) {
-							array.add(getName(tree, childTree.getNode().asResource()));
-						} else if (childTree.getNode().isResource()) {
-							LinkedHashMap<String, Object> child = Maps.newLinkedHashMap();
-							populateJsonObject(childTree, child);
-							array.add(child);
-						} else {
-							array.add(convertToJsonLiteral(childTree.getNode().asLiteral()));
-						}
-					}
-					addPredicateValue(json, tree, firstChildTree, array);
-				}
-			}
-		}
+	public boolean isPrettyPrinting() {
+		return prettyPrinting;
+	}
+
+	public String getContextUrl() {
+		return contextUrl;
+	}
 		
-		SortedMap<String, SortedMap<String, String>> nameUriMap = getPrefixedNameUriMap(tree);
-		if (tree.isRoot() && !nameUriMap.isEmpty()) {
-			json.put("@context", nameUriMap);
+	public String asJson(RdfTree tree) {
+		StringWriter writer = new StringWriter();
+		try {
+			asJson(tree, writer);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to write JSON to a string", e);
 		}
+		return writer.toString();
 	}
 
-	private void addPredicateValue(LinkedHashMap<String, Object> json,
-			RdfTree tree, RdfTree childTree, Object value) {
-		String predicateName = getName(tree, childTree.getPredicate());
-		if (childTree.isInverse()) {
-			@SuppressWarnings({ "unchecked", "rawtypes" })
-			Map<String, Object> reverse = (Map)json.get("@reverse");
-			if (reverse == null) {
-				reverse = Maps.<String, Object>newHashMap();
-				json.put("@reverse", reverse);
-			}
-			reverse.put(predicateName, value);
-		} else {
-			json.put(predicateName, value);
+	/**
+	 * Writes the JSON to the stream as UTF-8, without closing it
+	 */
+	public void asJson(RdfTree tree, OutputStream stream) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(stream, Charsets.UTF_8));
+		asJson(tree, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Writes the JSON to the writer as the tree is walked, 
+	 * without closing it
+	 */
+	public void asJson(RdfTree tree, Writer writer) throws IOException {
+		new RdfTreeEmitter(sink(writer)).emit(tree);
+	}
+
+	/**
+	 * A sink that writes the JSON of one tree to the writer, so that
+	 * it can be written in the same walk as other formats
+	 */
+	public RdfTreeSink sink(Writer writer) {
+		return new JsonWalker(new JsonEmitter(writer, prettyPrinting), HashBasedTable.<Integer, Integer, String>create());
+	}
+	
+	private void writeContext(RdfTree tree, JsonEmitter json) throws IOException {
+		if (contextUrl != null) {
+			json.value(contextUrl);
+			return;
+		}
+
+		ContextKey key = new ContextKey(getContextSignature(tree.getNameResolver()), 
+				tree.isList(), prettyPrinting, json.getDepth());
+		String context = CONTEXTS.getIfPresent(key);
+		if (context == null) {
+			StringWriter serialisedContext = new StringWriter();
+			JsonEmitter contextJson = new JsonEmitter(serialisedContext, prettyPrinting, key.depth);
+			JsonLdWalker.writeContext(JsonLdWalker.getContext(tree), tree.getNameResolver(), contextJson);
+			contextJson.flush();
+			context = serialisedContext.toString();
+			CONTEXTS.put(key, context);
 		}
+		json.rawValue(context);
 	}
 
-	private Object convertToJsonLiteral(Literal literal) {
-		if (Number.class.isAssignableFrom(literal.getValue().getClass())) {
-			return literal.getValue();
+	/**
+	 * Everything the @context of a tree is made from: the prefixed
+	 * name, URI and type of each mapped resource, in order
+	 */
+	private List<String> getContextSignature(NameResolver nameResolver) {
+		Collection<TypedResource> resources = nameResolver.getMappedResources().values();
+		List<String> signature = Lists.newArrayListWithCapacity(resources.size() * 3);
+		for (TypedResource resource: resources) {
+			signature.add(nameResolver.getPrefixedName(resource.getResource()));
+			signature.add(resource.getResource().getURI());
+			signature.add(resource.getType().name());
 		}
-		return literal.getLexicalForm();
+		return signature;
 	}
 
 	public Map<DirectionalPredicate, List<RdfTree>> getGroupedChildren(RdfTree tree) {
@@ -147,11 +160,12 @@ public class RdfTreeJsonWriter {
 	}
 	
 	public SortedMap<String, SortedMap<String, String>> getNameUriMap(RdfTree tree) {
-		return Maps.transformValues(tree.getNameResolver().getMappedResources(),
+		final NameResolver nameResolver = tree.getNameResolver();
+		return Maps.transformValues(nameResolver.getMappedResources(),
                 new Function<TypedResource, SortedMap<String, String>>() {
                     public SortedMap<String, String> apply(TypedResource resource) {
                         SortedMap<String, String> uriData = Maps.newTreeMap();
-                        uriData.put("@id", resource.getResource().getNameSpace());
+                        uriData.put("@id", nameResolver.getNamespace(resource.getResource()));
                         switch (resource.getType()) {
                             case VOCAB:
                                 uriData.put("@type", "@vocab");
@@ -166,29 +180,72 @@ public class RdfTreeJsonWriter {
 	}
 
     public SortedMap<String, SortedMap<String, String>> getPrefixedNameUriMap(RdfTree tree) {
-        SortedMap<String, TypedResource> prefixedNameUriMap = new TreeMap<String, TypedResource>();
-        for(Map.Entry<String, TypedResource> entry: tree.getNameResolver().getMappedResources().entrySet()) {
-            Resource resource = entry.getValue().getResource();
-            String name = tree.getNameResolver().getPrefixedName(resource);
-            prefixedNameUriMap.put(name, entry.getValue());
-        }
-
-        return Maps.transformValues(prefixedNameUriMap,
-                new Function<TypedResource, SortedMap<String, String>>() {
-                    public SortedMap<String, String> apply(TypedResource resource) {
-                        SortedMap<String, String> uriData = Maps.newTreeMap();
-                        uriData.put("@id", resource.getResource().getURI());
-                        switch (resource.getType()) {
-                            case VOCAB:
-                                uriData.put("@type", "@vocab");
-                                break;
-                            case ID:
-                                uriData.put("@type", "@id");
-                                break;
-                        }
-                        return uriData;
-                    }
-                });
+        return JsonLdWalker.getPrefixedNameUriMap(tree);
     }
 
+	/**
+	 * A compact tree that is shared by several parents is serialised
+	 * once for each depth it is written at, and the serialised fragment
+	 * is written wherever else it appears. The fragments, by shape and
+	 * depth, are only kept while one document is written.
+	 */
+	private class JsonWalker extends JsonLdWalker {
+
+		private final JsonEmitter json;
+		private final Table<Integer, Integer, String> fragments;
+
+		public JsonWalker(JsonEmitter json, Table<Integer, Integer, String> fragments) {
+			super(json);
+			this.json = json;
+			this.fragments = fragments;
+		}
+
+		@Override
+		protected boolean writeSharedTree(CompactRdfTree tree) throws IOException {
+			int depth = json.getDepth();
+			String fragment = fragments.get(tree.getShape(), depth);
+			if (fragment == null) {
+				StringWriter serialisedFragment = new StringWriter();
+				new JsonWalker(new JsonEmitter(serialisedFragment, prettyPrinting, depth), fragments).walk(tree);
+				fragment = serialisedFragment.toString();
+				fragments.put(tree.getShape(), depth, fragment);
+			}
+			json.rawValue(fragment);
+			return true;
+		}
+
+		@Override
+		protected void writeContext(RdfTree tree) throws IOException {
+			RdfTreeJsonWriter.this.writeContext(tree, json);
+		}
+
+	}
+
+	private static final class ContextKey {
+		private final List<String> signature;
+		private final boolean list;
+		private final boolean prettyPrinting;
+		private final int depth;
+
+		public ContextKey(List<String> signature, boolean list, boolean prettyPrinting, int depth) {
+			this.signature = signature;
+			this.list = list;
+			this.prettyPrinting = prettyPrinting;
+			this.depth = depth;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(signature, list, prettyPrinting, depth);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ContextKey)) return false;
+			ContextKey other = (ContextKey) obj;
+			return signature.equals(other.signature) && list == other.list 
+					&& prettyPrinting == other.prettyPrinting && depth == other.depth;
+		}
+	}
+
 }
@@ -0,0 +1,41 @@
+package daverog.jsonld.tree;
+
+import java.io.IOException;
+
+/**
+ * Writes a tree in some format from the events of a walk of it, so
+ * that an emitter can walk the tree once for any number of sinks.
+ *
+ * A sink reads the cursor it is given, but never moves it. Straight
+ * after a node or group is entered, a sink can return true to be told
+ * nothing more about it: neither what is below it, nor its exit.
+ */
+public interface RdfTreeSink {
+
+	/**
+	 * Whether the sink would rather have every child with the same
+	 * predicate and direction in one group. A sink that would must
+	 * still write groups of adjacent children, in canonical order,
+	 * when another sink of the same walk would not.
+	 */
+	boolean isGroupedByPredicate();
+
+	/**
+	 * Called with the canonicalised tree before it is walked.
+	 * An empty tree is not walked at all.
+	 */
+	void begin(RdfTree tree) throws IOException;
+
+	/**
+	 * Called for each event of the walk, returning whether to skip
+	 * everything below the node or group that has just been entered
+	 */
+	boolean event(RdfTreeCursor cursor) throws IOException;
+
+	/**
+	 * Called once the tree has been walked, to flush what the sink
+	 * has written, without closing it
+	 */
+	void end(RdfTree tree) throws IOException;
+
+}
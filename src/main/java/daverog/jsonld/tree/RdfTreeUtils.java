@@ -5,8 +5,19 @@ import java.util.List;
 import java.util.SortedSet;
 
 import com.google.common.collect.Sets;
+import com.hp.hpl.jena.rdf.model.Literal;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ModelFactory;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
 
 public class RdfTreeUtils {
+
+	//Creates the blank nodes and language tagged literals, which this
+	//version of ResourceFactory cannot, and never holds any statements
+	private static final Model DETACHED_NODES = ModelFactory.createDefaultModel();
 	
 	public static <T> int compareTwoListsOfValues(
 			List<T> firstValues,
@@ -35,4 +46,29 @@ public class RdfTreeUtils {
 		return object1.toString().compareTo(object2.toString());
 	}
 
+	/**
+	 * An equal node that belongs to no model, so that holding
+	 * it does not hold on to the model it came from
+	 */
+	static RDFNode detachNode(RDFNode node) {
+		if (!node.isLiteral()) return detachResource(node.asResource());
+		Literal literal = node.asLiteral();
+		if (literal.getDatatype() != null) {
+			return ResourceFactory.createTypedLiteral(literal.getLexicalForm(), literal.getDatatype());
+		}
+		if (!literal.getLanguage().isEmpty()) {
+			return DETACHED_NODES.createLiteral(literal.getLexicalForm(), literal.getLanguage());
+		}
+		return ResourceFactory.createPlainLiteral(literal.getLexicalForm());
+	}
+
+	static Resource detachResource(Resource resource) {
+		if (resource.isAnon()) return DETACHED_NODES.createResource(resource.getId());
+		return ResourceFactory.createResource(resource.getURI());
+	}
+
+	static Property detachProperty(Property property) {
+		return ResourceFactory.createProperty(property.getURI());
+	}
+
 }
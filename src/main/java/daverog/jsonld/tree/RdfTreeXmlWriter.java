@@ -1,144 +1,376 @@
 package daverog.jsonld.tree;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URLEncoder;
+import java.util.Map;
 
-import org.dom4j.Branch;
-import org.dom4j.Document;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
-import org.dom4j.QName;
-import org.dom4j.io.OutputFormat;
-import org.dom4j.io.XMLWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
-import com.hp.hpl.jena.rdf.model.Resource;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
 
 public class RdfTreeXmlWriter {
+
+	private static final String STYLESHEET = ".predicate { font-weight: bold; } .inverse { font-style: italic; }";
+
+	//The JDK's own implementation, rather than whichever is found first,
+	//as the Woodstox that Jena brings writes empty elements differently
+	private static final XMLOutputFactory XML_OUTPUT = XMLOutputFactory.newDefaultFactory();
+
+	private final boolean styledByClass;
+
+	public RdfTreeXmlWriter() {
+		this(false);
+	}
+
+	/**
+	 * When HTML is styled by class, the links to predicates have
+	 * classes, which a stylesheet in the head of the page styles,
+	 * rather than the same inline style on every link
+	 */
+	public RdfTreeXmlWriter(boolean styledByClass) {
+		this.styledByClass = styledByClass;
+	}
+
+	public boolean isStyledByClass() {
+		return styledByClass;
+	}
 	
 	public String asXml(RdfTree tree) {
-		if (tree.isEmpty()) return "<List/>";
-		
-		tree.canonicalise();
-
-		Document document = DocumentHelper.createDocument();
-		
-		if (tree.isList()) {
-			populateXmlList(tree, document);
-		} else {
-			populateXml(tree, document, document);
+		StringWriter writer = new StringWriter();
+		try {
+			asXml(tree, writer);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to write XML to a string", e);
 		}
-		
-		return generateXml(document);
+		return writer.toString();
+	}
+
+	/**
+	 * Writes the XML to the stream as UTF-8, without closing it
+	 */
+	public void asXml(RdfTree tree, OutputStream stream) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(stream, Charsets.UTF_8));
+		asXml(tree, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Writes the XML to the writer as the tree is walked, pretty 
+	 * printed as dom4j prints it, without closing the writer
+	 */
+	public void asXml(RdfTree tree, Writer writer) throws IOException {
+		new RdfTreeEmitter(xmlSink(writer)).emit(tree);
+	}
+
+	/**
+	 * A sink that writes the XML of one tree to the writer, so that
+	 * it can be written in the same walk as other formats
+	 */
+	public RdfTreeSink xmlSink(Writer writer) {
+		return new XmlSink(writer);
 	}
 	
 	public String asHtml(RdfTree tree, String relativeUrlBase) {
-		if (tree.isEmpty()) return "<html><body>No data</body></html>";
-		
-		tree.canonicalise();
-		Document document = DocumentHelper.createDocument();
-		
-		Element html = document.addElement(new QName("html"));
-		Element body = html.addElement(new QName("body"));
-		
-		if (tree.isList()) {
-			populateHtmlList(tree, document, body, relativeUrlBase);
-		} else {
-			populateHtml(tree, document, body, relativeUrlBase);
-		}
-		
-		return generateXml(document);
-	}
-
-	private String generateXml(Document document) {
-		StringWriter output = new StringWriter();
-		OutputFormat format = OutputFormat.createPrettyPrint();
-		format.setSuppressDeclaration(true);
-		format.setOmitEncoding(true);
-		format.setEncoding("UTF-8");
-		format.setNewLineAfterDeclaration(false);
-		format.setExpandEmptyElements(false);
-		XMLWriter writer = new XMLWriter(output, format);
-        try {
-			writer.write(document);
+		StringWriter writer = new StringWriter();
+		try {
+			asHtml(tree, relativeUrlBase, writer);
 		} catch (IOException e) {
-			throw new RuntimeException("Error during XML serialisation");
+			throw new IllegalStateException("Failed to write HTML to a string", e);
 		}
-        return output.toString().trim();
+		return writer.toString();
 	}
-	
-	private void populateXmlList(RdfTree tree, Document document) {
-		Element list = document.addElement(new QName("List"));
-		
-		for (RdfTree childTree: tree.getChildren()) {
-			populateXml(childTree, document, list);
-		}
-	}
-
-	private void populateXml(RdfTree tree, Document document, Branch branch) {
-        QName typeQName = tree.getType() == null ? new QName("Thing") : resourceAsQName(document, tree, tree.getType());
-   		Element root =  branch.addElement(typeQName);
-   		
-		root.addAttribute(new QName("id"), tree.getNameResolver().getName(tree.getNode().asResource()));
-
-		for (RdfTree childTree: tree.getChildren()) {
-			if (!childTree.isType()) {
-				QName predicateQName = resourceAsQName(document, tree, childTree.getPredicate());
-				document.getRootElement().add(predicateQName.getNamespace());
-				Element childElement = root.addElement(predicateQName);
-				if (childTree.isInverse()) childElement.addAttribute("inverse", "true");
-				if (childTree.isChildlessResource()) {
-					childElement.addAttribute(new QName("id"), tree.getNameResolver().getName(childTree.getNode().asResource()));
-				} else if (childTree.getNode().isResource()) {
-					populateXml(childTree, document, childElement);
+
+	/**
+	 * Writes the HTML to the stream as UTF-8, without closing it
+	 */
+	public void asHtml(RdfTree tree, String relativeUrlBase, OutputStream stream) throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(stream, Charsets.UTF_8));
+		asHtml(tree, relativeUrlBase, writer);
+		writer.flush();
+	}
+
+	/**
+	 * Writes the HTML to the writer as the tree is walked,
+	 * without closing it
+	 */
+	public void asHtml(RdfTree tree, String relativeUrlBase, Writer writer) throws IOException {
+		new RdfTreeEmitter(htmlSink(relativeUrlBase, writer)).emit(tree);
+	}
+
+	/**
+	 * A sink that writes the HTML of one tree to the writer, so that
+	 * it can be written in the same walk as other formats
+	 */
+	public RdfTreeSink htmlSink(String relativeUrlBase, Writer writer) {
+		return new HtmlSink(relativeUrlBase, writer);
+	}
+
+	/**
+	 * Each node is an element named after its type, within an element
+	 * named after its predicate, and each leaf an element named after 
+	 * its predicate. Types are not written as children. Names are the
+	 * ones the name resolver holds, so no names are created as the
+	 * elements are written.
+	 */
+	private class XmlSink implements RdfTreeSink {
+
+		private final Writer writer;
+		private XMLStreamWriter stream;
+		private PrettyXmlWriter xml;
+
+		public XmlSink(Writer writer) {
+			this.writer = writer;
+		}
+
+		public boolean isGroupedByPredicate() {
+			return false;
+		}
+
+		public void begin(RdfTree tree) throws IOException {
+			if (tree.isEmpty()) {
+				writer.write("<List/>");
+				return;
+			}
+			try {
+				stream = XML_OUTPUT.createXMLStreamWriter(writer);
+				xml = new PrettyXmlWriter(stream);
+			} catch (XMLStreamException e) {
+				throw new IOException("Error during XML serialisation", e);
+			}
+		}
+
+		public boolean event(RdfTreeCursor cursor) throws IOException {
+			try {
+				return writeEvent(cursor);
+			} catch (XMLStreamException e) {
+				throw new IOException("Error during XML serialisation", e);
+			}
+		}
+
+		private boolean writeEvent(RdfTreeCursor cursor) throws XMLStreamException {
+			RdfTreeCursor.Event event = cursor.getEvent();
+			RdfTree childTree = cursor.getTree();
+			NameResolver nameResolver = childTree.getNameResolver();
+			if (event == RdfTreeCursor.Event.ENTER_NODE) {
+				if (childTree.isList()) {
+					xml.startElement("List");
+				} else if (childTree.isType()) {
+					return true;
+				} else {
+					if (childTree.getPredicate() != null) startPredicateElement(childTree, xml);
+					xml.startElement(childTree.getType() == null ? "Thing" : nameResolver.getName(childTree.getType()));
+					xml.attribute("id", nameResolver.getName(childTree.getNode().asResource()));
+				}
+			} else if (event == RdfTreeCursor.Event.LEAF && !childTree.isType()) {
+				startPredicateElement(childTree, xml);
+				if (childTree.getNode().isResource()) {
+					xml.attribute("id", nameResolver.getName(childTree.getNode().asResource()));
 				} else {
-					childElement.addText(childTree.getNode().asLiteral().getLexicalForm());
+					xml.text(childTree.getNode().asLiteral().getLexicalForm());
 				}
+				xml.endElement();
+			} else if (event == RdfTreeCursor.Event.EXIT_NODE) {
+				if (childTree.getPredicate() != null) xml.endElement();
+				xml.endElement();
 			}
+			return false;
 		}
-	}
-	
-	private void populateHtmlList(RdfTree tree, Document document, Branch branch, String relativeUrlBase) {
-		Element list = branch.addElement("ol");
-		
-		for (RdfTree childTree: tree.getChildren()) {
-			Element listItem = list.addElement("li");
-			populateHtml(childTree, document, listItem, relativeUrlBase);
+
+		public void end(RdfTree tree) throws IOException {
+			if (stream == null) {
+				writer.flush();
+				return;
+			}
+			try {
+				stream.writeEndDocument();
+				stream.flush();
+			} catch (XMLStreamException e) {
+				throw new IOException("Error during XML serialisation", e);
+			}
 		}
+
 	}
-	
-	private void populateHtml(RdfTree tree, Document document, Branch branch, String relativeUrlBase) {
-		Element link =  branch.addElement("a");
-		link.addAttribute(new QName("href"), createRelativeLinkToResource(tree.getNode().asResource().getURI(), relativeUrlBase));
-		link.addAttribute(new QName("title"), tree.getNode().asResource().getURI());
-		if (tree.getNode().asResource().getURI() == null) link.addText("Result");
-		else link.addText(tree.getNameResolver().getName(tree.getNode().asResource()));
-		if (!tree.getChildren().isEmpty()) {
-			Element children =  branch.addElement("ul");
-			for (RdfTree childTree: tree.getChildren()) {
-				Element childElement = children.addElement("li");
-				String childName = tree.getNameResolver().getName(childTree.getPredicate());
-				Element predicate = childElement.addElement("a");
-				predicate.addAttribute(new QName("href"), createRelativeLinkToResource(childTree.getPredicate().getURI(), relativeUrlBase));
-				predicate.addAttribute(new QName("title"), childTree.getPredicate().getURI());
-				predicate.addText(childName + (childTree.isInverse() ? " (inverse)" : "") +  ":");
-				String style = "font-weight: bold;";
-				if (childTree.isInverse()) style = style + " font-style: italic";
-    			predicate.addAttribute("style", style);
-
-				Element value = childElement.addElement("span");
+
+	private void startPredicateElement(RdfTree childTree, PrettyXmlWriter xml) throws XMLStreamException {
+		xml.startElement(childTree.getNameResolver().getName(childTree.getPredicate()));
+		if (childTree.isInverse()) xml.attribute("inverse", "true");
+	}
+
+	/**
+	 * Each node is a link, followed by a bulleted list of its children
+	 * if it has any, and each child a link to its predicate, followed 
+	 * by its value. The items of a list are a numbered list.
+	 */
+	private class HtmlSink implements RdfTreeSink {
+
+		private final HtmlLinks links;
+		private final Writer writer;
+		private XMLStreamWriter stream;
+		private PrettyXmlWriter html;
+
+		public HtmlSink(String relativeUrlBase, Writer writer) {
+			this.links = new HtmlLinks(relativeUrlBase);
+			this.writer = writer;
+		}
+
+		public boolean isGroupedByPredicate() {
+			return false;
+		}
+
+		public void begin(RdfTree tree) throws IOException {
+			if (tree.isEmpty()) {
+				writer.write("<html><body>No data</body></html>");
+				return;
+			}
+			try {
+				stream = XML_OUTPUT.createXMLStreamWriter(writer);
+				html = new PrettyXmlWriter(stream);
+				html.startElement("html");
+				if (styledByClass) {
+					html.startElement("head");
+					html.startElement("style");
+					html.text(STYLESHEET);
+					html.endElement();
+					html.endElement();
+				}
+				html.startElement("body");
+			} catch (XMLStreamException e) {
+				throw new IOException("Error during HTML serialisation", e);
+			}
+		}
+
+		public boolean event(RdfTreeCursor cursor) throws IOException {
+			try {
+				writeEvent(cursor);
+			} catch (XMLStreamException e) {
+				throw new IOException("Error during HTML serialisation", e);
+			}
+			return false;
+		}
+
+		private void writeEvent(RdfTreeCursor cursor) throws XMLStreamException {
+			RdfTreeCursor.Event event = cursor.getEvent();
+			RdfTree childTree = cursor.getTree();
+			if (event == RdfTreeCursor.Event.ENTER_NODE) {
+				if (childTree.isList()) {
+					html.startElement("ol");
+				} else {
+					if (childTree.getPredicate() != null) {
+						startPredicate(childTree, html, links);
+					} else if (cursor.getDepth() > 0) {
+						html.startElement("li");
+					}
+					writeResourceLink(childTree, html, links);
+					if (!childTree.getChildren().isEmpty()) html.startElement("ul");
+				}
+			} else if (event == RdfTreeCursor.Event.LEAF) {
+				startPredicate(childTree, html, links);
 				if (childTree.getNode().isResource()) {
-					populateHtml(childTree, document, value, relativeUrlBase);
+					writeResourceLink(childTree, html, links);
+				} else {
+					html.text(childTree.getNode().asLiteral().getLexicalForm());
+				}
+				endPredicate(html);
+			} else if (event == RdfTreeCursor.Event.EXIT_NODE) {
+				if (childTree.isList()) {
+					html.endElement();
 				} else {
-					value.addText(childTree.getNode().asLiteral().getLexicalForm());
+					if (!childTree.getChildren().isEmpty()) html.endElement();
+					if (childTree.getPredicate() != null) {
+						endPredicate(html);
+					} else if (cursor.getDepth() > 0) {
+						html.endElement();
+					}
 				}
 			}
-		} 
+		}
+
+		public void end(RdfTree tree) throws IOException {
+			if (stream == null) {
+				writer.flush();
+				return;
+			}
+			try {
+				html.endElement();
+				html.endElement();
+				stream.writeEndDocument();
+				stream.flush();
+			} catch (XMLStreamException e) {
+				throw new IOException("Error during HTML serialisation", e);
+			}
+		}
+
+	}
+
+	private void writeResourceLink(RdfTree tree, PrettyXmlWriter html, HtmlLinks links) throws XMLStreamException {
+		String uri = tree.getNode().asResource().getURI();
+		html.startElement("a");
+		html.attribute("href", links.getLink(uri));
+		html.attribute("title", uri);
+		html.text(uri == null ? "Result" : tree.getNameResolver().getName(tree.getNode().asResource()));
+		html.endElement();
+	}
+
+	/**
+	 * Starts an item for the child, with a link to its predicate,
+	 * and the element its value goes in
+	 */
+	private void startPredicate(RdfTree childTree, PrettyXmlWriter html, HtmlLinks links) throws XMLStreamException {
+		String uri = childTree.getPredicate().getURI();
+		html.startElement("li");
+		html.startElement("a");
+		html.attribute("href", links.getLink(uri));
+		html.attribute("title", uri);
+		if (styledByClass) {
+			html.attribute("class", childTree.isInverse() ? "predicate inverse" : "predicate");
+		} else {
+			html.attribute("style", childTree.isInverse() ? "font-weight: bold; font-style: italic" : "font-weight: bold;");
+		}
+		html.text(childTree.getNameResolver().getName(childTree.getPredicate()) + (childTree.isInverse() ? " (inverse)" : "") +  ":");
+		html.endElement();
+		html.startElement("span");
+	}
+
+	private void endPredicate(PrettyXmlWriter html) throws XMLStreamException {
+		html.endElement();
+		html.endElement();
 	}
 
-	private String createRelativeLinkToResource(String uri, String relativeUrlBase) {
-		if (uri == null) return null;
+	/**
+	 * Links to resources relative to a base URL, each of which
+	 * is only encoded once while a page is written
+	 */
+	private static class HtmlLinks {
+
+		private final String relativeUrlBase;
+		private final Map<String, String> links = Maps.newHashMap();
+
+		public HtmlLinks(String relativeUrlBase) {
+			this.relativeUrlBase = relativeUrlBase;
+		}
+
+		public String getLink(String uri) {
+			if (uri == null) return null;
+			String link = links.get(uri);
+			if (link == null) {
+				link = createRelativeLinkToResource(uri, relativeUrlBase);
+				links.put(uri, link);
+			}
+			return link;
+		}
+
+	}
+
+	private static String createRelativeLinkToResource(String uri, String relativeUrlBase) {
 		try {
 			return relativeUrlBase + URLEncoder.encode(uri, "UTF-8");
 		} catch (UnsupportedEncodingException e) {
@@ -146,9 +378,4 @@ public class RdfTreeXmlWriter {
 		}
 	}
 
-	private QName resourceAsQName(Document document, RdfTree tree, Resource resource) {
-		return new QName(tree.getNameResolver().getName(resource));
-	}
-	
-
 }
@@ -0,0 +1,33 @@
+package daverog.jsonld.tree;
+
+import java.util.List;
+
+import com.hp.hpl.jena.rdf.model.RDFNode;
+import com.hp.hpl.jena.rdf.model.Resource;
+import com.hp.hpl.jena.rdf.model.Statement;
+
+/**
+ * Supplies the statements needed to expand a single
+ * resource of an RdfTree.
+ */
+interface StatementLookup {
+
+	/**
+	 * Statements with the resource as their subject,
+	 * in the order the model lists them
+	 */
+	List<Statement> getStatements(Resource subject);
+
+	/**
+	 * Statements with the resource as their object, excluding
+	 * those that also have it as their subject
+	 */
+	List<Statement> getInverseStatements(Resource object);
+
+	/**
+	 * The object of the resource's rdf:type statement, or null
+	 * if it has no type or more than one
+	 */
+	RDFNode getSingleType(Resource subject);
+
+}
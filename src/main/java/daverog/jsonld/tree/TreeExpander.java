@@ -0,0 +1,11 @@
+package daverog.jsonld.tree;
+
+/**
+ * Constructs a single tree of a lazy RdfTree, setting its
+ * type and adding its children, when it is first read.
+ */
+interface TreeExpander {
+
+	void expand(RdfTree tree);
+
+}
@@ -0,0 +1,227 @@
+package daverog.jsonld.tree;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimaps;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Resource;
+
+/**
+ * The prefixes, prioritised namespaces and name overrides that resources
+ * are named with. A URI is split into a namespace and local name at the
+ * longest prefixed namespace it starts with, found in a NamespaceTrie.
+ * What can be worked out for a URI on its own, such as its local name,
+ * prefix and prefixed name, is remembered the first time it is seen, as
+ * is each name as the writers encode it. A table is immutable apart from
+ * those records, which are concurrent, so one table can be shared by every
+ * tree named with the same vocabulary on any number of threads.
+ *
+ * Which resources are named by their local names depends on the other
+ * resources in a tree, so is left to each tree's NameResolver.
+ */
+public final class VocabularyTable {
+
+	private static final int MAXIMUM_TERMS = 10000;
+
+	private final Map<String, String> namespacePrefixes;
+	private final NamespaceTrie namespaces;
+	private final List<String> prioritisedNamespaces;
+	private final Map<String, Integer> namespacePriorities;
+	private final Map<String, String> nameOverrides;
+	private final Cache<String, Term> terms = CacheBuilder.newBuilder()
+			.maximumSize(MAXIMUM_TERMS)
+			.build();
+	private final Cache<String, EncodedName> encodedNames = CacheBuilder.newBuilder()
+			.maximumSize(MAXIMUM_TERMS)
+			.build();
+
+	/**
+	 * @param prefixes Namespace URIs by prefix. Where several prefixes have
+	 *                 the same namespace, the last of them is used.
+	 */
+	public VocabularyTable(Map<String, String> prefixes, List<String> prioritisedNamespaces, Map<String, String> nameOverrides) {
+		this(prioritisedNamespaces, nameOverrides, invert(prefixes));
+	}
+
+	private VocabularyTable(List<String> prioritisedNamespaces, Map<String, String> nameOverrides, ImmutableMap<String, String> namespacePrefixes) {
+		checkDuplicateNameOverrides(nameOverrides);
+
+		this.namespacePrefixes = namespacePrefixes;
+		this.namespaces = new NamespaceTrie(namespacePrefixes);
+		this.nameOverrides = ImmutableMap.copyOf(nameOverrides);
+
+		List<String> namespaces = Lists.newArrayList(RdfTree.RDF_PREFIX, RdfTree.OWL_PREFIX);
+		namespaces.addAll(prioritisedNamespaces);
+		this.prioritisedNamespaces = ImmutableList.copyOf(namespaces);
+
+		Map<String, Integer> priorities = Maps.newHashMap();
+		for (int i = namespaces.size() - 1; i >= 0; i--) {
+			priorities.put(namespaces.get(i), i);
+		}
+		namespacePriorities = ImmutableMap.copyOf(priorities);
+	}
+
+	/**
+	 * A table with the model's prefixes
+	 */
+	public static VocabularyTable fromModel(Model model, List<String> prioritisedNamespaces, Map<String, String> nameOverrides) {
+		return new VocabularyTable(prioritisedNamespaces, nameOverrides, getNamespacePrefixes(model));
+	}
+
+	/**
+	 * The prefix the model gives each of its namespaces
+	 */
+	static ImmutableMap<String, String> getNamespacePrefixes(Model model) {
+		ImmutableMap.Builder<String, String> namespacePrefixes = ImmutableMap.builder();
+		for (String namespace : ImmutableSet.copyOf(model.getNsPrefixMap().values())) {
+			namespacePrefixes.put(namespace, model.getNsURIPrefix(namespace));
+		}
+		return namespacePrefixes.build();
+	}
+
+	private static ImmutableMap<String, String> invert(Map<String, String> prefixes) {
+		Map<String, String> namespacePrefixes = Maps.newHashMap();
+		for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+			namespacePrefixes.put(prefix.getValue(), prefix.getKey());
+		}
+		return ImmutableMap.copyOf(namespacePrefixes);
+	}
+
+	private static void checkDuplicateNameOverrides(Map<String, String> nameOverrides) {
+		Map<String, Collection<String>> inverse = Multimaps.invertFrom(Multimaps.forMap(nameOverrides), HashMultimap.<String, String>create()).asMap();
+		for (Collection<String> collection : inverse.values()) {
+			if (collection.size() > 1)
+				throw new IllegalArgumentException("A name override cannot map to multiple URIs: " + collection);
+		}
+	}
+
+	/**
+	 * The prefix of the namespace, or null if it has none
+	 */
+	public String getPrefix(String namespace) {
+		return namespacePrefixes.get(namespace);
+	}
+
+	/**
+	 * The position of the namespace in the prioritised namespaces, after
+	 * RDF and OWL, which come first, or -1 if it is not prioritised
+	 */
+	public int getPriority(String namespace) {
+		Integer priority = namespacePriorities.get(namespace);
+		return priority == null ? -1 : priority;
+	}
+
+	public List<String> getPrioritisedNamespaces() {
+		return prioritisedNamespaces;
+	}
+
+	public Map<String, String> getNameOverrides() {
+		return nameOverrides;
+	}
+
+	Term getTerm(Resource resource) {
+		if (resource.isAnon()) return new Term(resource, this);
+
+		Term term = terms.getIfPresent(resource.getURI());
+		if (term == null) {
+			term = new Term(resource, this);
+			terms.put(resource.getURI(), term);
+		}
+		return term;
+	}
+
+	/**
+	 * The name as the writers write it, encoded the first time it is seen
+	 */
+	EncodedName getEncodedName(String name) {
+		EncodedName encodedName = encodedNames.getIfPresent(name);
+		if (encodedName == null) {
+			encodedName = new EncodedName(name);
+			encodedNames.put(name, encodedName);
+		}
+		return encodedName;
+	}
+
+	/**
+	 * What the vocabulary says about a single resource,
+	 * whichever tree it is in
+	 */
+	static final class Term {
+		private final String namespace;
+		private final String localName;
+		private final String namespacePrefix;
+		private final String prefix;
+		private final String prefixedName;
+
+		private Term(Resource resource, VocabularyTable vocabulary) {
+			if (resource.isAnon()) {
+				namespace = null;
+				localName = resource.getLocalName();
+				namespacePrefix = null;
+				prefix = null;
+				prefixedName = "@blank";
+				return;
+			}
+
+			NamespaceTrie.Match match = vocabulary.namespaces.match(resource);
+			if (match != null) {
+				namespace = match.getNamespace();
+				localName = resource.getURI().substring(namespace.length());
+				namespacePrefix = match.getPrefix();
+			} else {
+				namespace = resource.getNameSpace();
+				localName = resource.getLocalName();
+				namespacePrefix = null;
+			}
+
+			String override = vocabulary.nameOverrides.get(resource.getURI());
+			if (namespace.equals(RdfTree.RDF_PREFIX)) prefix = "rdf";
+			else if (namespace.equals(RdfTree.OWL_PREFIX)) prefix = "owl";
+			else if (override != null) prefix = null;
+			else prefix = namespacePrefix;
+
+			if (resource.getURI().equals(RdfTree.RDF_TYPE)) prefixedName = "type";
+			else if (override != null) prefixedName = override;
+			else if (prefix != null) prefixedName = prefix + ":" + localName;
+			else prefixedName = resource.getURI();
+		}
+
+		public String getNamespace() {
+			return namespace;
+		}
+
+		public String getLocalName() {
+			return localName;
+		}
+
+		/**
+		 * The prefix of the resource's namespace in the prefix map
+		 */
+		public String getNamespacePrefix() {
+			return namespacePrefix;
+		}
+
+		/**
+		 * The prefix the resource is named with, which is rdf and owl
+		 * for those namespaces, and none for overridden resources
+		 */
+		public String getPrefix() {
+			return prefix;
+		}
+
+		public String getPrefixedName() {
+			return prefixedName;
+		}
+	}
+
+}
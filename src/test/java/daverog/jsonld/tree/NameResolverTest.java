@@ -1,5 +1,6 @@
 package daverog.jsonld.tree;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -8,11 +9,13 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.math.BigDecimal;
 import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 public class NameResolverTest {
 	
@@ -103,6 +106,94 @@ public class NameResolverTest {
         assertEquals("badgers", nameResolver.getPrefixedName(model.getResource("http://badgers.com/localName")));
     }
 
+	@Test
+	public void names_are_resolved_consistently_when_requested_repeatedly() {
+		Model model = ModelUtils.createJenaModel(
+				"@prefix prfx: <http://prefix.com/> .\n" +
+				"@prefix prfx2: <http://prefix2.com/> .\n" +
+				"<uri:a> prfx:localName <uri:c> .\n" +
+				"<uri:a> prfx2:localName <uri:c> .");
+		NameResolver nameResolver = new NameResolver(model, prioritisedNamespaces, nameOverrides, "");
+		
+		for (int i = 0; i < 2; i++) {
+			assertEquals("localName", nameResolver.getName(model.getResource("http://prefix.com/localName")));
+			assertEquals("prfx2_localName", nameResolver.getName(model.getResource("http://prefix2.com/localName")));
+			assertEquals("prfx2:localName", nameResolver.getPrefixedName(model.getResource("http://prefix2.com/localName")));
+			assertEquals(-1, nameResolver.compareNames(model.getResource("uri:unmapped"), model.getResource("http://prefix.com/localName")));
+			assertEquals(1, nameResolver.compareNames(model.getResource("http://prefix.com/localName"), model.getResource("uri:unmapped")));
+		}
+	}
+
+	@Test
+	public void a_vocabulary_table_names_resources_with_its_own_prefixes_for_every_model_it_is_shared_by() {
+		VocabularyTable vocabulary = new VocabularyTable(
+				ImmutableMap.of("prfx", "http://prefix.com/", "prfx2", "http://prefix2.com/"),
+				prioritisedNamespaces, nameOverrides);
+
+		for (String statements : Lists.newArrayList(
+				"<uri:a> <http://prefix.com/localName> <uri:c> .\n" +
+				"<uri:a> <http://prefix2.com/localName> <uri:c> .",
+				"<uri:b> <http://prefix2.com/localName> <uri:d> .\n" +
+				"<uri:b> <http://prefix.com/localName> <uri:d> .")) {
+			Model model = ModelUtils.createJenaModel(statements);
+			NameResolver nameResolver = new NameResolver(model, vocabulary, "", true);
+
+			assertEquals("localName", nameResolver.getName(model.getResource("http://prefix.com/localName")));
+			assertEquals("prfx2_localName", nameResolver.getName(model.getResource("http://prefix2.com/localName")));
+			assertEquals("prfx:localName", nameResolver.getPrefixedName(model.getResource("http://prefix.com/localName")));
+			assertEquals(2, nameResolver.getMappedResources().size());
+		}
+	}
+
+	@Test
+	public void a_resource_is_named_with_the_longest_namespace_that_leaves_a_valid_local_name() {
+		Model model = ModelUtils.createJenaModel(
+				"@prefix prfx: <http://prefix.com/> .\n" +
+				"@prefix long: <http://prefix.com/long> .\n" +
+				"<uri:a> <http://prefix.com/longName> <uri:c> .\n" +
+				"<uri:a> <http://prefix.com/long1> <uri:c> .\n" +
+				"<uri:a> <http://prefix.com/long-name> <uri:c> .\n" +
+				"<uri:a> <http://prefix.com/long_name> <uri:c> .\n" +
+				"<uri:a> <http://prefix.com/long\u00c9cole> <uri:c> .");
+		NameResolver nameResolver = new NameResolver(model, prioritisedNamespaces, nameOverrides, "");
+
+		assertEquals("long:Name", nameResolver.getPrefixedName(model.getResource("http://prefix.com/longName")));
+		assertEquals("http://prefix.com/long", nameResolver.getNamespace(model.getResource("http://prefix.com/longName")));
+		assertEquals("prfx:long1", nameResolver.getPrefixedName(model.getResource("http://prefix.com/long1")));
+		assertEquals("prfx:long-name", nameResolver.getPrefixedName(model.getResource("http://prefix.com/long-name")));
+		assertEquals("long:_name", nameResolver.getPrefixedName(model.getResource("http://prefix.com/long_name")));
+		assertEquals("long:\u00c9cole", nameResolver.getPrefixedName(model.getResource("http://prefix.com/long\u00c9cole")));
+		assertEquals("http://prefix.com/longName", nameResolver.getMappedResources().get("Name").getResource().getURI());
+	}
+
+	@Test
+	public void each_literal_is_parsed_once_and_kept_when_the_resolver_is_frozen() {
+		Model model = ModelUtils.createJenaModel(
+				"<uri:a> <uri:b> \"1.50\"^^<http://www.w3.org/2001/XMLSchema#decimal> .\n" +
+				"<uri:c> <uri:b> \"1.50\"^^<http://www.w3.org/2001/XMLSchema#decimal> , \"1.50\" .");
+		NameResolver nameResolver = new NameResolver(model, prioritisedNamespaces, nameOverrides, "");
+
+		LiteralValue decimal = nameResolver.getLiteralValue(model.createTypedLiteral(new BigDecimal("1.50")));
+		LiteralValue string = nameResolver.getLiteralValue(model.createLiteral("1.50"));
+		assertSame(decimal, nameResolver.getLiteralValue(model.createTypedLiteral(new BigDecimal("1.50"))));
+		assertEquals(true, decimal.isNumeric());
+		assertEquals(false, string.isNumeric());
+		assertEquals("1.50", string.getValue());
+		assertSame(decimal, nameResolver.freeze().getLiteralValue(model.createTypedLiteral(new BigDecimal("1.50"))));
+	}
+
+	@Test
+	public void names_are_encoded_once_for_every_resolver_with_the_same_vocabulary() {
+		Model model = ModelUtils.createJenaModel("<uri:a> <uri:b> <uri:c> .");
+		VocabularyTable vocabulary = VocabularyTable.fromModel(model, prioritisedNamespaces, nameOverrides);
+		NameResolver nameResolver = new NameResolver(model, vocabulary, "", true);
+
+		EncodedName name = nameResolver.getEncodedName("prfx:<Zo\u00eb>");
+		assertSame(name, new NameResolver(model, vocabulary, "", true).getEncodedName("prfx:<Zo\u00eb>"));
+		assertEquals("\"prfx:\\u003cZo\u00eb\\u003e\"", new String(name.getJson()));
+		assertEquals("prfx:<Zo\u00eb>", new String(name.getUtf8(), Charsets.UTF_8));
+	}
+
     @Rule
     public ExpectedException exception = ExpectedException.none();
     @Test
@@ -0,0 +1,194 @@
+package daverog.jsonld.tree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Bytes;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+public class RdfTreeCborWriterTest {
+
+	private final RdfTreeGenerator generator = new RdfTreeGenerator();
+	private final RdfTreeCborWriter writer = new RdfTreeCborWriter();
+
+	@Test
+	public void cbor_has_the_same_content_as_json() throws Exception {
+		for (String fixture : new String[] {"ben-ainslie", "athletes", "creativework", "10-creative-works"}) {
+			RdfTree tree = generateFixtureTree(fixture);
+			assertEquals(new JsonParser().parse(tree.asJson()), decode(writer.asCbor(tree)));
+		}
+	}
+
+	@Test
+	public void repeated_names_are_only_encoded_once() throws Exception {
+		byte[] cbor = writer.asCbor(generateFixtureTree("athletes"));
+
+		byte[] name = "domain:name".getBytes(Charsets.UTF_8);
+		int first = Bytes.indexOf(cbor, name);
+		assertEquals(true, first >= 0);
+		assertEquals(-1, Bytes.indexOf(Arrays.copyOfRange(cbor, first + 1, cbor.length), name));
+		assertEquals(true, cbor.length < generateFixtureTree("athletes").asJson(RdfTreeJsonWriter.COMPACT).length());
+	}
+
+	@Test
+	public void numbers_are_encoded_as_cbor_numbers() throws Exception {
+		RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n" +
+				"@prefix ns: <http://purl.org/ns/> .\n" +
+				"result:this result:item <uri:a> .\n" +
+				"<uri:a> ns:count 3 ; ns:height \"172.5\"^^xsd:decimal ; ns:big \"-18446744073709551616\"^^xsd:integer ."));
+
+		JsonObject decoded = decode(writer.asCbor(tree)).getAsJsonObject();
+		assertEquals(new JsonPrimitive(3L), decoded.get("ns:count"));
+		assertEquals(new JsonPrimitive(new BigDecimal("172.5")), decoded.get("ns:height"));
+		assertEquals(new JsonPrimitive(new BigInteger("-18446744073709551616")), decoded.get("ns:big"));
+	}
+
+	@Test
+	public void strings_after_a_large_integer_refer_to_the_right_index() throws Exception {
+		RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n" +
+				"@prefix ns: <http://purl.org/ns/> .\n" +
+				"result:this result:item <uri:a> .\n" +
+				"<uri:a> ns:big \"18446744073709551616\"^^xsd:integer ; ns:knows <uri:b> , <uri:c> .\n" +
+				"<uri:b> ns:big \"18446744073709551616\"^^xsd:integer ; ns:label \"a repeated label\" .\n" +
+				"<uri:c> ns:label \"a repeated label\" ."));
+
+		JsonObject decoded = decode(writer.asCbor(tree)).getAsJsonObject();
+		assertEquals(new JsonParser().parse(tree.asJson()), decoded);
+		JsonArray known = decoded.get("ns:knows").getAsJsonArray();
+		assertEquals(new BigInteger("18446744073709551616"), known.get(0).getAsJsonObject().get("ns:big").getAsBigInteger());
+		assertEquals("a repeated label", known.get(0).getAsJsonObject().get("ns:label").getAsString());
+		assertEquals("a repeated label", known.get(1).getAsJsonObject().get("ns:label").getAsString());
+	}
+
+	@Test
+	public void a_reference_is_only_used_where_it_is_shorter_than_the_string() {
+		assertEquals(3, CborEmitter.getMinimumReferencedLength(23));
+		assertEquals(4, CborEmitter.getMinimumReferencedLength(0xff));
+		assertEquals(5, CborEmitter.getMinimumReferencedLength(0xffff));
+		assertEquals(7, CborEmitter.getMinimumReferencedLength(0xffffffffL));
+		assertEquals(11, CborEmitter.getMinimumReferencedLength(0x100000000L));
+	}
+
+	@Test
+	public void an_empty_tree_is_written_as_an_empty_map() throws RdfTreeException {
+		assertArrayEquals(new byte[] {(byte) 0xbf, (byte) 0xff},
+				writer.asCbor(generator.generateRdfTree(ModelUtils.createJenaModel(""))));
+	}
+
+	private RdfTree generateFixtureTree(String fixture) throws RdfTreeException {
+		return generator.generateRdfTree(ModelUtils.createJenaModel(
+				TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".ttl")));
+	}
+
+	private JsonElement decode(byte[] cbor) throws IOException {
+		return new CborDecoder(cbor).read();
+	}
+
+	/**
+	 * Decodes the subset of CBOR the writer uses into Gson's tree
+	 */
+	private static class CborDecoder {
+
+		private final DataInputStream in;
+		private final List<JsonPrimitive> stringRefs = Lists.newArrayList();
+
+		public CborDecoder(byte[] cbor) {
+			in = new DataInputStream(new ByteArrayInputStream(cbor));
+		}
+
+		public JsonElement read() throws IOException {
+			int initialByte = in.readUnsignedByte();
+			int majorType = initialByte >> 5;
+			if (initialByte == 0xbf) {
+				JsonObject object = new JsonObject();
+				while (true) {
+					JsonElement name = read();
+					if (name == null) return object;
+					object.add(name.getAsString(), read());
+				}
+			}
+			if (initialByte == 0xff) return null;
+			if (initialByte == 0xfa) return new JsonPrimitive(in.readFloat());
+			if (initialByte == 0xfb) return new JsonPrimitive(in.readDouble());
+
+			long argument = readArgument(initialByte & 0x1f);
+			switch (majorType) {
+			case 0:
+				return new JsonPrimitive(argument);
+			case 1:
+				return new JsonPrimitive(-1 - argument);
+			case 2:
+				byte[] bytes = new byte[(int) argument];
+				in.readFully(bytes);
+				return register(new JsonPrimitive(new BigInteger(1, bytes)), bytes.length);
+			case 3:
+				byte[] utf8 = new byte[(int) argument];
+				in.readFully(utf8);
+				return register(new JsonPrimitive(new String(utf8, Charsets.UTF_8)), utf8.length);
+			case 4:
+				JsonArray array = new JsonArray();
+				for (int i = 0; i < argument; i++) {
+					array.add(read());
+				}
+				return array;
+			case 6:
+				return readTagged(argument);
+			default:
+				throw new IllegalStateException("Unexpected initial byte " + initialByte);
+			}
+		}
+
+		private JsonElement readTagged(long tag) throws IOException {
+			if (tag == 256) return read();
+			if (tag == 25) return stringRefs.get(read().getAsInt());
+			if (tag == 2) return read();
+			if (tag == 3) return new JsonPrimitive(read().getAsBigInteger().negate().subtract(BigInteger.ONE));
+			if (tag == 4) {
+				JsonArray fraction = read().getAsJsonArray();
+				return new JsonPrimitive(new BigDecimal(fraction.get(1).getAsBigInteger(), -fraction.get(0).getAsInt()));
+			}
+			throw new IllegalStateException("Unexpected tag " + tag);
+		}
+
+		/**
+		 * Numbers byte and text strings together, as the stringref
+		 * namespace does, if they are long enough to be referred to
+		 */
+		private JsonPrimitive register(JsonPrimitive string, int length) {
+			int index = stringRefs.size();
+			int minimumLength = index < 24 ? 3 : index < 0x100 ? 4 : index < 0x10000 ? 5 : 7;
+			if (length >= minimumLength) stringRefs.add(string);
+			return string;
+		}
+
+		private long readArgument(int additionalInformation) throws IOException {
+			if (additionalInformation < 24) return additionalInformation;
+			if (additionalInformation == 24) return in.readUnsignedByte();
+			if (additionalInformation == 25) return in.readUnsignedShort();
+			if (additionalInformation == 26) return in.readInt() & 0xffffffffL;
+			return in.readLong();
+		}
+
+	}
+
+}
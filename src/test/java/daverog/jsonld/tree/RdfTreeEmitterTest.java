@@ -0,0 +1,132 @@
+package daverog.jsonld.tree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class RdfTreeEmitterTest {
+
+	private final RdfTreeGenerator generator = new RdfTreeGenerator();
+
+	@Test
+	public void one_walk_writes_each_format_as_its_own_writer_does() throws Exception {
+		for (String fixture : new String[] {"ben-ainslie", "athletes", "creativework", "10-creative-works", "multi-lingual"}) {
+			assertOneWalkMatchesEachWriter(generateFixtureTree(fixture));
+			assertOneWalkMatchesEachWriter(generateFixtureTree(fixture).freeze());
+		}
+	}
+
+	@Test
+	public void json_is_grouped_by_predicate_when_its_children_are_not_adjacent() throws Exception {
+		RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix ns: <http://purl.org/ns/> .\n" +
+				"result:this result:item <uri:a> .\n" +
+				"<uri:a> ns:knows \"nobody\" , <uri:b> , <uri:c> ; ns:name \"a\" .\n" +
+				"<uri:b> ns:name \"b\" ; ns:knows \"somebody\" , <uri:d> .\n" +
+				"<uri:d> ns:name \"d\" .\n" +
+				"<uri:e> ns:knows <uri:a> ; ns:name \"e\" .\n" +
+				"<uri:f> ns:knows <uri:a> ."));
+
+		assertEquals(true, hasPredicateSplit(tree));
+		assertOneWalkMatchesEachWriter(tree);
+		assertOneWalkMatchesEachWriter(tree.freeze());
+	}
+
+	@Test
+	public void what_one_sink_skips_the_others_are_still_told_of() throws Exception {
+		RdfTree tree = generateFixtureTree("ben-ainslie");
+		EventCountingSink alone = new EventCountingSink(false);
+		new RdfTreeEmitter(alone).emit(tree);
+
+		EventCountingSink skipping = new EventCountingSink(true);
+		EventCountingSink counting = new EventCountingSink(false);
+		StringWriter xml = new StringWriter();
+		new RdfTreeEmitter(skipping, counting, new RdfTreeXmlWriter().xmlSink(xml)).emit(tree);
+
+		assertEquals(alone.events, counting.events);
+		assertEquals(Lists.newArrayList(RdfTreeCursor.Event.ENTER_NODE), skipping.events);
+		assertEquals(tree.asXml(), xml.toString());
+	}
+
+	@Test
+	public void an_empty_tree_is_written_empty_in_each_format() throws Exception {
+		RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(""));
+		StringWriter json = new StringWriter();
+		StringWriter html = new StringWriter();
+		new RdfTreeEmitter(RdfTreeJsonWriter.PRETTY.sink(json), new RdfTreeXmlWriter().htmlSink("/", html)).emit(tree);
+
+		assertEquals("{}", json.toString());
+		assertEquals("<html><body>No data</body></html>", html.toString());
+	}
+
+	private void assertOneWalkMatchesEachWriter(RdfTree tree) throws IOException {
+		RdfTreeXmlWriter xmlWriter = new RdfTreeXmlWriter();
+		StringWriter json = new StringWriter();
+		StringWriter compactJson = new StringWriter();
+		StringWriter xml = new StringWriter();
+		StringWriter html = new StringWriter();
+		ByteArrayOutputStream cbor = new ByteArrayOutputStream();
+
+		new RdfTreeEmitter(
+				RdfTreeJsonWriter.PRETTY.sink(json),
+				RdfTreeJsonWriter.COMPACT.sink(compactJson),
+				xmlWriter.xmlSink(xml),
+				xmlWriter.htmlSink("/things?uri=", html),
+				new RdfTreeCborWriter().sink(cbor)).emit(tree);
+
+		assertEquals(tree.asJson(), json.toString());
+		assertEquals(tree.asJson(RdfTreeJsonWriter.COMPACT), compactJson.toString());
+		assertEquals(tree.asXml(), xml.toString());
+		assertEquals(xmlWriter.asHtml(tree, "/things?uri="), html.toString());
+		assertArrayEquals(tree.asCbor(), cbor.toByteArray());
+	}
+
+	private boolean hasPredicateSplit(RdfTree tree) {
+		RdfTreeCursor cursor = new RdfTreeCursor(tree);
+		while (cursor.hasNext()) {
+			if (cursor.next() == RdfTreeCursor.Event.ENTER_GROUP && cursor.isPredicateSplit()) return true;
+		}
+		return false;
+	}
+
+	private RdfTree generateFixtureTree(String fixture) throws RdfTreeException {
+		return generator.generateRdfTree(ModelUtils.createJenaModel(
+				TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".ttl")));
+	}
+
+	private static class EventCountingSink implements RdfTreeSink {
+
+		private final boolean skippingRoot;
+		private final List<RdfTreeCursor.Event> events = Lists.newArrayList();
+
+		public EventCountingSink(boolean skippingRoot) {
+			this.skippingRoot = skippingRoot;
+		}
+
+		public boolean isGroupedByPredicate() {
+			return false;
+		}
+
+		public void begin(RdfTree tree) {
+		}
+
+		public boolean event(RdfTreeCursor cursor) {
+			events.add(cursor.getEvent());
+			return skippingRoot;
+		}
+
+		public void end(RdfTree tree) {
+		}
+
+	}
+
+}
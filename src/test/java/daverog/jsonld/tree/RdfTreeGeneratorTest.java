@@ -3,7 +3,16 @@ package daverog.jsonld.tree;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import org.junit.rules.ExpectedException;
 import org.junit.*;
@@ -12,6 +21,7 @@ import daverog.jsonld.tree.ModelUtils;
 import daverog.jsonld.tree.TestResourceLoader;
 
 import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.ResourceFactory;
 
 public class RdfTreeGeneratorTest {
 
@@ -568,6 +578,31 @@ public class RdfTreeGeneratorTest {
 		System.out.println(rdfTree.asJson());
 	}
 	
+	@Test
+	public void anAthleteIsStreamedAsXmlToAnOutputStream() throws Exception {
+		Model model = ModelUtils.createJenaModel(
+			TestResourceLoader.loadClasspathResourceAsString("fixtures/ben-ainslie.ttl"));
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		new RdfTreeXmlWriter().asXml(generator.generateRdfTree(model), stream);
+		assertEquals(
+			TestResourceLoader.loadClasspathResourceAsString("fixtures/ben-ainslie.xml"), 
+			new String(stream.toByteArray(), "UTF-8"));
+	}
+
+	@Test
+	public void xmlTextIsEscapedAndItsWhitespaceCollapsed() throws RdfTreeException {
+		Model model = ModelUtils.createJenaModel(
+			"@prefix result: <http://purl.org/ontology/rdf-result/> ." +
+			"@prefix ns: <http://purl.org/ns/> ." +
+			"result:this result:item <uri:a> . \n" +
+			"<uri:a> ns:p \"  a <&>\\n\\tb  \" .");
+		assertEquals(
+			"<Thing id=\"uri:a\">\n" +
+			"  <p>a &lt;&amp;&gt; b</p>\n" +
+			"</Thing>",
+			generator.generateRdfTree(model).asXml());
+	}
+
 	@Test
 	public void anAthleteIsRenderedAsAJsonTree() throws RdfTreeException {
 		Model model = ModelUtils.createJenaModel(
@@ -618,6 +653,43 @@ public class RdfTreeGeneratorTest {
 				rdfTree.asHtml("/things?uri="));
 	}	
 	
+	@Test
+	public void htmlStyledByClassHasOneStylesheetAndClassesOnPredicateLinks() throws Exception {
+		Model model = ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> ." +
+				"@prefix ns: <http://purl.org/ns/> ." +
+				"result:this result:item <uri:a> . \n" +
+				"<uri:a> ns:p \"a\" ; ns:p \"b\" . <uri:c> ns:p <uri:a> .");
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		new RdfTreeXmlWriter(true).asHtml(generator.generateRdfTree(model), "/things?uri=", stream);
+		assertEquals(
+				"<html>\n" +
+				"  <head>\n" +
+				"    <style>.predicate { font-weight: bold; } .inverse { font-style: italic; }</style>\n" +
+				"  </head>\n" +
+				"  <body>\n" +
+				"    <a href=\"/things?uri=uri%3Aa\" title=\"uri:a\">uri:a</a>\n" +
+				"    <ul>\n" +
+				"      <li>\n" +
+				"        <a href=\"/things?uri=http%3A%2F%2Fpurl.org%2Fns%2Fp\" title=\"http://purl.org/ns/p\" class=\"predicate\">p:</a>\n" +
+				"        <span>a</span>\n" +
+				"      </li>\n" +
+				"      <li>\n" +
+				"        <a href=\"/things?uri=http%3A%2F%2Fpurl.org%2Fns%2Fp\" title=\"http://purl.org/ns/p\" class=\"predicate\">p:</a>\n" +
+				"        <span>b</span>\n" +
+				"      </li>\n" +
+				"      <li>\n" +
+				"        <a href=\"/things?uri=http%3A%2F%2Fpurl.org%2Fns%2Fp\" title=\"http://purl.org/ns/p\" class=\"predicate inverse\">p (inverse):</a>\n" +
+				"        <span>\n" +
+				"          <a href=\"/things?uri=uri%3Ac\" title=\"uri:c\">uri:c</a>\n" +
+				"        </span>\n" +
+				"      </li>\n" +
+				"    </ul>\n" +
+				"  </body>\n" +
+				"</html>",
+				new String(stream.toByteArray(), "UTF-8"));
+	}
+
 	@Test
 	public void aListOfCreativeWorksIsRenderedAsAJsonTree() throws RdfTreeException {
 		Model model = ModelUtils.createJenaModel(
@@ -820,4 +892,328 @@ public class RdfTreeGeneratorTest {
             "  }\n" +
             "}", rdfTree.asJson());
     }
+
+    @Test
+    public void an_indexed_generator_renders_the_same_trees_as_one_that_queries_the_model() throws RdfTreeException {
+        RdfTreeGenerator indexedGenerator = new RdfTreeGenerator();
+        indexedGenerator.setIndexed(true);
+        for (String fixture : new String[] {"ben-ainslie", "ben-ainslie-different-tree-start", "athletes", "creativework", "creative-works", "10-creative-works"}) {
+            Model model = ModelUtils.createJenaModel(
+                    TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".ttl"));
+            assertEquals(
+                    TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".json"),
+                    indexedGenerator.generateRdfTree(model).asJson());
+        }
+    }
+
+    @Test
+    public void a_long_chain_of_resources_is_expanded_to_its_full_depth() throws RdfTreeException {
+        StringBuilder turtle = new StringBuilder(
+            "@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+            "result:this result:item <uri:0> .\n");
+        for (int i = 0; i < 1000; i++) {
+            turtle.append("<uri:" + i + "> <uri:next> <uri:" + (i + 1) + "> .\n");
+        }
+        RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(turtle.toString()));
+
+        int depth = 0;
+        while (!tree.getChildren().isEmpty()) {
+            tree = tree.getChildren().get(0);
+            depth++;
+        }
+        assertEquals(1000, depth);
+        assertEquals("uri:1000", tree.getNode().asResource().getURI());
+    }
+
+    @Test
+    public void a_chain_many_thousands_of_resources_deep_is_expanded_to_its_full_depth() throws RdfTreeException {
+        StringBuilder turtle = new StringBuilder(
+            "@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+            "result:this result:item <uri:0> .\n");
+        for (int i = 0; i < 20000; i++) {
+            turtle.append("<uri:" + i + "> <uri:next> <uri:" + (i + 1) + "> .\n");
+        }
+        turtle.append("<uri:20000> <uri:next> <uri:10000> .\n");
+        RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(turtle.toString()));
+
+        int depth = 0;
+        while (!tree.getChildren().isEmpty()) {
+            tree = tree.getChildren().get(0);
+            depth++;
+        }
+        assertEquals(20000, depth);
+        assertEquals("uri:20000", tree.getNode().asResource().getURI());
+    }
+
+    @Test
+    public void list_items_with_numeric_ordering_values_are_sorted_numerically() throws RdfTreeException {
+        StringBuilder turtle = new StringBuilder(
+            "@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+            "@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n" +
+            "result:this result:orderByPredicate <uri:p> .\n");
+        for (int i = 0; i < 200; i++) {
+            int value = (i * 37) % 200;
+            turtle.append("result:this result:listItem <uri:" + value + "> .\n");
+            turtle.append("<uri:" + value + "> <uri:p> \"" + value + "\"^^xsd:integer .\n");
+        }
+        RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(turtle.toString()));
+
+        assertEquals(200, tree.getChildren().size());
+        for (int i = 0; i < 200; i++) {
+            assertEquals("uri:" + i, tree.getChildren().get(i).getNode().asResource().getURI());
+        }
+    }
+
+    @Test
+    public void a_cycle_of_result_next_statements_causes_an_error() {
+        try {
+            Model model = ModelUtils.createJenaModel(
+                "@prefix result: <http://purl.org/ontology/rdf-result/> ." +
+                "result:this result:next <uri:a> . \n" +
+                "<uri:a> result:next <uri:b> . \n" +
+                "<uri:b> result:next <uri:a> .");
+            generator.generateRdfTree(model);
+            fail("RdfTreeException expected");
+        } catch (RdfTreeException e) {
+            assertEquals("result:next forms a cycle at uri:a", e.getMessage());
+        }
+    }
+
+    @Test
+    public void a_long_linked_list_is_followed_to_its_end() throws RdfTreeException {
+        StringBuilder turtle = new StringBuilder(
+            "@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+            "result:this result:next <uri:0> .\n");
+        for (int i = 0; i < 2000; i++) {
+            turtle.append("<uri:" + i + "> result:next <uri:" + (i + 1) + "> .\n");
+        }
+        RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(turtle.toString()));
+
+        assertEquals(2001, tree.getChildren().size());
+        assertEquals("uri:2000", tree.getChildren().get(2000).getNode().asResource().getURI());
+    }
+
+    @Test
+    public void lists_are_truncated_to_the_maximum_list_length() throws RdfTreeException {
+        generator.setMaxListLength(2);
+        Model linkedList = ModelUtils.createJenaModel(
+            "@prefix result: <http://purl.org/ontology/rdf-result/> ." +
+            "result:this result:next <uri:a> . \n" +
+            "<uri:a> result:next <uri:b> . \n" +
+            "<uri:b> result:next <uri:c> . \n" +
+            "<uri:c> result:next <uri:c> .");
+        assertEquals(
+            "<List>\n" +
+            "  <Thing id=\"uri:a\"/>\n" +
+            "  <Thing id=\"uri:b\"/>\n" +
+            "</List>",
+            generator.generateRdfTree(linkedList).asXml());
+
+        Model orderedList = ModelUtils.createJenaModel(
+            "@prefix result: <http://purl.org/ontology/rdf-result/> ." +
+            "result:this result:listItem <uri:a> . \n" +
+            "result:this result:listItem <uri:b> . \n" +
+            "result:this result:listItem <uri:c> . \n" +
+            "result:this result:orderByPredicate <uri:p> . \n" +
+            "<uri:a> <uri:p> \"3\" . \n" +
+            "<uri:b> <uri:p> \"2\" . \n" +
+            "<uri:c> <uri:p> \"1\" .");
+        assertEquals(
+            "<List>\n" +
+            "  <Thing id=\"uri:c\">\n" +
+            "    <uri:p>1</uri:p>\n" +
+            "  </Thing>\n" +
+            "  <Thing id=\"uri:b\">\n" +
+            "    <uri:p>2</uri:p>\n" +
+            "  </Thing>\n" +
+            "</List>",
+            generator.generateRdfTree(orderedList).asXml());
+    }
+
+    @Test
+    public void list_items_expanded_in_parallel_render_the_same_trees_as_those_expanded_in_sequence() throws RdfTreeException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            generator.setListExpansionExecutor(executor);
+            for (String fixture : new String[] {"athletes", "creative-works", "10-creative-works"}) {
+                Model model = ModelUtils.createJenaModel(
+                        TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".ttl"));
+                assertEquals(
+                        TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".json"),
+                        generator.generateRdfTree(model).asJson());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void a_compact_generator_renders_the_same_trees_as_the_default() throws RdfTreeException {
+        RdfTreeGenerator compactGenerator = new RdfTreeGenerator();
+        compactGenerator.setCompact(true);
+        for (String fixture : new String[] {"ben-ainslie", "ben-ainslie-different-tree-start", "athletes", "creativework", "creative-works", "10-creative-works"}) {
+            Model model = ModelUtils.createJenaModel(
+                    TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".ttl"));
+            assertEquals(
+                    TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".json"),
+                    compactGenerator.generateRdfTree(model).asJson());
+        }
+        assertEquals(
+                TestResourceLoader.loadClasspathResourceAsString("fixtures/ben-ainslie.xml"),
+                compactGenerator.generateRdfTree(ModelUtils.createJenaModel(
+                        TestResourceLoader.loadClasspathResourceAsString("fixtures/ben-ainslie.ttl"))).asXml());
+    }
+
+    @Test
+    public void a_compact_tree_cannot_be_modified() throws RdfTreeException {
+        generator.setCompact(true);
+        RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+            "@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+            "result:this result:listItem <uri:a> .\n" +
+            "<uri:a> <uri:b> <uri:c> ."));
+
+        RdfTree item = tree.getChildren().get(0);
+        assertEquals("uri:a", item.getNode().asResource().getURI());
+        assertEquals("uri:c", item.getChildren().get(0).getNode().asResource().getURI());
+        try {
+            item.setType(ResourceFactory.createResource("uri:Type"));
+            fail("UnsupportedOperationException expected");
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void a_frozen_tree_renders_the_same_as_the_tree_it_was_frozen_from_without_its_model() throws Exception {
+        for (String fixture : new String[] {"ben-ainslie", "athletes", "creative-works"}) {
+            RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+                TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".ttl")));
+            final RdfTree frozen = tree.freeze();
+
+            assertEquals(tree.asJson(), frozen.asJson());
+            assertEquals(tree.asXml(), frozen.asXml());
+            assertEquals(null, frozen.getChildren().get(0).getNode().asResource().getModel());
+            assertEquals(frozen, frozen.freeze());
+
+            ExecutorService executor = Executors.newFixedThreadPool(4);
+            List<Future<String>> renderings = Lists.newArrayList();
+            for (int i = 0; i < 8; i++) {
+                renderings.add(executor.submit(new Callable<String>() {
+                    public String call() {
+                        return frozen.asJson() + frozen.asHtml("/things?uri=");
+                    }
+                }));
+            }
+            for (Future<String> rendering : renderings) {
+                assertEquals(tree.asJson() + tree.asHtml("/things?uri="), rendering.get());
+            }
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void reference_data_under_several_list_items_is_stored_once_in_a_compact_tree() throws RdfTreeException {
+        String turtle =
+            "@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+            "result:this result:listItem <uri:a> .\n" +
+            "result:this result:listItem <uri:b> .\n" +
+            "<uri:a> <uri:sport> <uri:sailing> .\n" +
+            "<uri:b> <uri:sport> <uri:sailing> .\n" +
+            "<uri:sailing> <uri:name> \"Sailing\" .";
+        RdfTreeGenerator compactGenerator = new RdfTreeGenerator();
+        compactGenerator.setCompact(true);
+        RdfTree tree = compactGenerator.generateRdfTree(ModelUtils.createJenaModel(turtle));
+
+        RdfTree firstItem = tree.getChildren().get(0);
+        RdfTree secondItem = tree.getChildren().get(1);
+        CompactRdfTree firstSport = (CompactRdfTree) firstItem.getChildren().get(0);
+        CompactRdfTree secondSport = (CompactRdfTree) secondItem.getChildren().get(0);
+        assertEquals(true, firstSport.isShared());
+        assertEquals(firstSport.getShape(), secondSport.getShape());
+        assertEquals(true, secondSport.hasParentWithNode(secondItem.getNode()));
+        assertEquals(false, secondSport.hasParentWithNode(firstItem.getNode()));
+        assertEquals(generator.generateRdfTree(ModelUtils.createJenaModel(turtle)).asJson(), tree.asJson());
+        assertEquals(
+            generator.generateRdfTree(ModelUtils.createJenaModel(turtle)).asJson(RdfTreeJsonWriter.COMPACT), 
+            tree.asJson(RdfTreeJsonWriter.COMPACT));
+    }
+
+    @Test
+    public void a_lazy_generator_renders_the_same_trees_as_the_default() throws RdfTreeException {
+        RdfTreeGenerator lazyGenerator = new RdfTreeGenerator();
+        lazyGenerator.setLazy(true);
+        for (String fixture : new String[] {"ben-ainslie", "ben-ainslie-different-tree-start", "athletes", "creativework", "creative-works", "10-creative-works"}) {
+            Model model = ModelUtils.createJenaModel(
+                    TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".ttl"));
+            assertEquals(
+                    TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".json"),
+                    lazyGenerator.generateRdfTree(model).asJson());
+        }
+    }
+
+    @Test
+    public void a_lazy_tree_is_only_constructed_as_far_as_it_is_read() throws RdfTreeException {
+        generator.setLazy(true);
+        RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+            "@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+            "result:this result:item <uri:a> .\n" +
+            "<uri:a> <uri:b> <uri:c> .\n" +
+            "<uri:c> <uri:d> <uri:e> ."));
+
+        assertEquals(false, tree.isConstructed());
+
+        RdfTree child = tree.getChildren().get(0);
+        assertEquals("uri:c", child.getNode().asResource().getURI());
+        assertEquals(true, tree.isConstructed());
+        assertEquals(false, child.isConstructed());
+        assertEquals(false, tree.isFullyConstructed());
+
+        tree.asJson();
+        assertEquals(true, tree.isFullyConstructed());
+    }
+
+    @Test
+    public void only_names_used_in_the_tree_are_in_the_context_when_registered_from_the_tree() throws RdfTreeException {
+        String turtle =
+            "@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+            "@prefix ns: <http://purl.org/ns/> .\n" +
+            "result:this result:item <uri:a> .\n" +
+            "<uri:a> ns:used <uri:b> .\n" +
+            "<uri:c> ns:unused <uri:d> .";
+
+        assertEquals(true, generator.generateRdfTree(ModelUtils.createJenaModel(turtle)).asJson().contains("ns:unused"));
+
+        generator.setNamesFromTreeOnly(true);
+        assertEquals(
+            "{\"@id\":\"uri:a\",\"ns:used\":\"uri:b\",\"@context\":{\"ns:used\":{\"@id\":\"http://purl.org/ns/used\",\"@type\":\"@id\"}}}",
+            generator.generateRdfTree(ModelUtils.createJenaModel(turtle)).asJson(RdfTreeJsonWriter.COMPACT));
+    }
+
+    @Test
+    public void trees_generated_with_a_shared_vocabulary_are_named_with_its_prefixes() throws RdfTreeException {
+        VocabularyTable vocabulary = new VocabularyTable(
+            ImmutableMap.of("ns", "http://purl.org/ns/"),
+            Lists.<String>newArrayList(),
+            Maps.<String, String>newHashMap());
+
+        for (String item : new String[] {"uri:a", "uri:b"}) {
+            Model model = ModelUtils.createJenaModel(
+                "<http://purl.org/ontology/rdf-result/this> <http://purl.org/ontology/rdf-result/item> <" + item + "> .\n" +
+                "<" + item + "> <http://purl.org/ns/name> \"name\" .");
+            assertEquals(
+                "{\"@id\":\"" + item + "\",\"ns:name\":\"name\",\"@context\":{\"ns:name\":{\"@id\":\"http://purl.org/ns/name\"}}}",
+                generator.generateRdfTree(model, vocabulary).asJson(RdfTreeJsonWriter.COMPACT));
+        }
+    }
+
+    @Test
+    public void names_registered_from_the_tree_match_those_registered_from_the_model_when_every_statement_is_used() throws RdfTreeException {
+        generator.setNamesFromTreeOnly(true);
+        for (String fixture : new String[] {"ben-ainslie", "athletes", "creative-works", "10-creative-works"}) {
+            Model model = ModelUtils.createJenaModel(
+                    TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".ttl"));
+            assertEquals(
+                    TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".json"),
+                    generator.generateRdfTree(model).asJson());
+        }
+    }
 }
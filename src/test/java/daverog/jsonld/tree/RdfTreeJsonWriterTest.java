@@ -0,0 +1,153 @@
+package daverog.jsonld.tree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+
+public class RdfTreeJsonWriterTest {
+
+	private final RdfTreeGenerator generator = new RdfTreeGenerator();
+	private final RdfTreeJsonWriter writer = new RdfTreeJsonWriter();
+
+	@Test
+	public void json_written_to_a_writer_matches_the_fixtures() throws Exception {
+		for (String fixture : new String[] {"ben-ainslie", "athletes", "creativework", "10-creative-works"}) {
+			StringWriter json = new StringWriter();
+			writer.asJson(generateFixtureTree(fixture), json);
+			assertEquals(
+					TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".json"),
+					json.toString());
+		}
+	}
+
+	@Test
+	public void json_written_to_a_stream_is_encoded_as_utf8() throws Exception {
+		RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix ns: <http://purl.org/ns/> .\n" +
+				"result:this result:item <uri:a> .\n" +
+				"<uri:a> ns:name \"Zo\u00eb <&>\"@en ; ns:count 3 ."));
+
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		writer.asJson(tree, stream);
+
+		assertEquals(tree.asJson(), new String(stream.toByteArray(), "UTF-8"));
+		assertEquals(true, tree.asJson().contains("\"ns:name\": \"Zo\u00eb \\u003c\\u0026\\u003e\""));
+		assertEquals(true, tree.asJson().contains("\"ns:count\": 3"));
+	}
+
+	@Test
+	public void reverse_fields_and_a_shared_type_name_are_written_as_they_always_have_been() throws RdfTreeException {
+		//Without an rdf prefix, dc:type is named 'type' as well as rdf:type
+		RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix ns: <http://purl.org/ns/> .\n" +
+				"@prefix dc: <http://purl.org/dc/terms/> .\n" +
+				"result:this result:item <uri:a> .\n" +
+				"<uri:a> a ns:Thing ; dc:type ns:Kind ; ns:name \"a\" .\n" +
+				"<uri:b> ns:knows <uri:a> .\n" +
+				"<uri:c> ns:likes <uri:a> .\n" +
+				"<uri:d> ns:follows <uri:a> .\n" +
+				"<uri:e> ns:admires <uri:a> .\n" +
+				"<uri:f> ns:cites <uri:a> ."));
+
+		String json = tree.asJson(RdfTreeJsonWriter.COMPACT);
+		assertEquals(
+				"{\"@id\":\"uri:a\",\"@type\":\"ns:Kind\",\"ns:name\":\"a\",\"@reverse\":{" +
+				"\"ns:follows\":\"uri:d\",\"ns:cites\":\"uri:f\",\"ns:knows\":\"uri:b\",\"ns:likes\":\"uri:c\",\"ns:admires\":\"uri:e\"},",
+				json.substring(0, json.indexOf("\"@context\"")));
+	}
+
+	@Test
+	public void a_number_json_cannot_represent_is_refused() throws RdfTreeException {
+		RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .\n" +
+				"@prefix ns: <http://purl.org/ns/> .\n" +
+				"result:this result:item <uri:a> .\n" +
+				"<uri:a> ns:ratio \"NaN\"^^xsd:double ."));
+
+		try {
+			tree.asJson();
+			fail("A NaN was written as JSON");
+		} catch (IllegalArgumentException e) {
+			assertEquals("JSON cannot represent the number NaN", e.getMessage());
+		}
+	}
+
+	@Test
+	public void an_empty_tree_is_written_as_an_empty_object() throws RdfTreeException, IOException {
+		StringWriter json = new StringWriter();
+		writer.asJson(generator.generateRdfTree(ModelUtils.createJenaModel("")), json);
+		assertEquals("{}", json.toString());
+	}
+
+	@Test
+	public void compact_json_has_the_same_content_as_pretty_json_without_whitespace() throws RdfTreeException {
+		for (String fixture : new String[] {"ben-ainslie", "athletes", "creativework", "10-creative-works"}) {
+			RdfTree tree = generateFixtureTree(fixture);
+			String pretty = tree.asJson();
+			String compact = tree.asJson(RdfTreeJsonWriter.COMPACT);
+
+			assertEquals(new JsonParser().parse(pretty), new JsonParser().parse(compact));
+			assertEquals(new Gson().toJson(new JsonParser().parse(pretty)), compact);
+		}
+	}
+
+	@Test
+	public void compact_json_is_written_on_a_single_line() throws RdfTreeException {
+		RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix ns: <http://purl.org/ns/> .\n" +
+				"result:this result:item <uri:a> .\n" +
+				"<uri:a> ns:p \"a\" ."));
+
+		assertEquals(
+				"{\"@id\":\"uri:a\",\"ns:p\":\"a\",\"@context\":{\"ns:p\":{\"@id\":\"http://purl.org/ns/p\"}}}",
+				new RdfTreeJsonWriter(false).asJson(tree));
+	}
+
+	@Test
+	public void a_remote_context_url_replaces_the_inline_context() throws RdfTreeException {
+		RdfTree tree = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix ns: <http://purl.org/ns/> .\n" +
+				"result:this result:listItem <uri:a> .\n" +
+				"<uri:a> ns:p \"a\" ."));
+
+		assertEquals(
+				"{\"results\":[{\"@id\":\"uri:a\",\"ns:p\":\"a\"}],\"@context\":\"http://example.com/context.jsonld\"}",
+				new RdfTreeJsonWriter(false, "http://example.com/context.jsonld").asJson(tree));
+	}
+
+	@Test
+	public void trees_with_different_vocabularies_have_their_own_contexts() throws RdfTreeException {
+		String first = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix ns: <http://purl.org/ns/> .\n" +
+				"result:this result:item <uri:a> .\n" +
+				"<uri:a> ns:p \"a\" .")).asJson(RdfTreeJsonWriter.COMPACT);
+		String second = generator.generateRdfTree(ModelUtils.createJenaModel(
+				"@prefix result: <http://purl.org/ontology/rdf-result/> .\n" +
+				"@prefix ns: <http://purl.org/other/> .\n" +
+				"result:this result:item <uri:a> .\n" +
+				"<uri:a> ns:p \"a\" .")).asJson(RdfTreeJsonWriter.COMPACT);
+
+		assertEquals("{\"@id\":\"uri:a\",\"ns:p\":\"a\",\"@context\":{\"ns:p\":{\"@id\":\"http://purl.org/ns/p\"}}}", first);
+		assertEquals("{\"@id\":\"uri:a\",\"ns:p\":\"a\",\"@context\":{\"ns:p\":{\"@id\":\"http://purl.org/other/p\"}}}", second);
+	}
+
+	private RdfTree generateFixtureTree(String fixture) throws RdfTreeException {
+		return generator.generateRdfTree(ModelUtils.createJenaModel(
+				TestResourceLoader.loadClasspathResourceAsString("fixtures/" + fixture + ".ttl")));
+	}
+
+}
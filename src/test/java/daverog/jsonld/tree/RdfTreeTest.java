@@ -1,8 +1,221 @@
 package daverog.jsonld.tree;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.Resource;
 
 public class RdfTreeTest {
 
-	
+	private Model model;
+	private NameResolver nameResolver;
+	private Property p;
+
+	@Before
+	public void setUp() {
+		model = ModelUtils.createJenaModel("<uri:a> <uri:p> <uri:b> .");
+		nameResolver = new NameResolver(model, Lists.<String>newArrayList(), Maps.<String, String>newHashMap(), RdfTree.DEFAULT_RESULT_ONTOLOGY_URI_PREFIX);
+		p = model.createProperty("uri:p");
+	}
+
+	@Test
+	public void a_tree_has_a_parent_with_the_nodes_of_its_ancestors_but_not_its_own() {
+		RdfTree root = new RdfTree(model, nameResolver, resource("uri:a"));
+		root.addChild(model.createStatement(resource("uri:a"), p, resource("uri:b")));
+		RdfTree child = root.getChildren().get(0);
+		child.addChild(model.createStatement(resource("uri:b"), p, resource("uri:c")));
+		RdfTree grandchild = child.getChildren().get(0);
+
+		assertTrue(grandchild.hasParentWithNode(resource("uri:a")));
+		assertTrue(grandchild.hasParentWithNode(resource("uri:b")));
+		assertFalse(grandchild.hasParentWithNode(resource("uri:c")));
+		assertFalse(root.hasParentWithNode(resource("uri:a")));
+	}
+
+	@Test
+	public void a_child_is_not_added_if_its_node_is_an_ancestor() {
+		RdfTree root = new RdfTree(model, nameResolver, resource("uri:a"));
+		root.addChild(model.createStatement(resource("uri:a"), p, resource("uri:b")));
+		RdfTree child = root.getChildren().get(0);
+		child.addChild(model.createStatement(resource("uri:b"), p, resource("uri:a")));
+
+		assertTrue(child.getChildren().isEmpty());
+	}
+
+	@Test
+	public void trees_below_a_list_have_a_list_root_with_the_nodes_of_the_list_items() {
+		RdfTree list = new RdfTree(model, nameResolver);
+		list.addListItem(resource("uri:a"));
+		list.addListItem(resource("uri:b"));
+		RdfTree listItem = list.getChildren().get(0);
+		listItem.addChild(model.createStatement(resource("uri:a"), p, resource("uri:c")));
+		RdfTree child = listItem.getChildren().get(0);
+
+		assertTrue(child.hasListRootWithNode(resource("uri:b")));
+		assertTrue(listItem.hasListRootWithNode(resource("uri:a")));
+		assertFalse(child.hasListRootWithNode(resource("uri:c")));
+		assertFalse(list.hasListRootWithNode(resource("uri:a")));
+	}
+
+	@Test
+	public void inverse_properties_are_only_followed_from_the_root_and_list_items() {
+		RdfTree list = new RdfTree(model, nameResolver);
+		list.addListItem(resource("uri:a"));
+		RdfTree listItem = list.getChildren().get(0);
+		listItem.addChild(model.createStatement(resource("uri:z"), p, resource("uri:a")));
+		listItem.addChild(model.createStatement(resource("uri:a"), p, resource("uri:b")));
+		RdfTree child = listItem.getChildren().get(1);
+		child.addChild(model.createStatement(resource("uri:y"), p, resource("uri:b")));
+
+		assertEquals(2, listItem.getChildren().size());
+		assertTrue(child.getChildren().isEmpty());
+	}
+
+	@Test
+	public void a_canonical_tree_is_canonicalised_again_when_a_tree_below_it_gains_a_child() {
+		RdfTree root = new RdfTree(model, nameResolver, resource("uri:a"));
+		root.addChild(model.createStatement(resource("uri:a"), p, resource("uri:b")));
+		root.addChild(model.createStatement(resource("uri:a"), p, resource("uri:c")));
+		root.canonicalise();
+		assertEquals(resource("uri:b"), root.getChildren().get(0).getNode());
+
+		root.getChildren().get(0).addChild(model.createStatement(resource("uri:b"), p, resource("uri:d")));
+		root.canonicalise();
+		assertEquals(resource("uri:c"), root.getChildren().get(0).getNode());
+		assertEquals(resource("uri:b"), root.getChildren().get(1).getNode());
+	}
+
+	@Test
+	public void a_cursor_walks_the_children_in_canonical_order_in_groups_of_adjacent_predicates() {
+		RdfTree root = createTreeWithTwoValuesOfOnePredicateApart();
+
+		assertEquals(
+				"ENTER_NODE uri:a 0, ENTER_GROUP uri:p 0, LEAF x 1, EXIT_GROUP uri:p 0, " +
+				"ENTER_GROUP uri:q 0, LEAF y 1, EXIT_GROUP uri:q 0, " +
+				"ENTER_GROUP uri:p 0, ENTER_NODE uri:b 1, ENTER_GROUP uri:p 1, LEAF uri:c 2, EXIT_GROUP uri:p 1, EXIT_NODE uri:b 1, EXIT_GROUP uri:p 0, " +
+				"EXIT_NODE uri:a 0",
+				walk(new RdfTreeCursor(root)));
+	}
+
+	@Test
+	public void a_cursor_grouped_by_predicate_gathers_each_predicate_into_one_group() {
+		RdfTree root = createTreeWithTwoValuesOfOnePredicateApart();
+
+		assertEquals(
+				"ENTER_NODE uri:a 0, ENTER_GROUP uri:p 0, LEAF x 1, ENTER_NODE uri:b 1, ENTER_GROUP uri:p 1, LEAF uri:c 2, EXIT_GROUP uri:p 1, EXIT_NODE uri:b 1, EXIT_GROUP uri:p 0, " +
+				"ENTER_GROUP uri:q 0, LEAF y 1, EXIT_GROUP uri:q 0, " +
+				"EXIT_NODE uri:a 0",
+				walk(new RdfTreeCursor(root, true)));
+	}
+
+	@Test
+	public void a_node_skipped_by_a_cursor_is_not_walked_or_exited() {
+		RdfTree root = createTreeWithTwoValuesOfOnePredicateApart();
+		RdfTreeCursor cursor = new RdfTreeCursor(root, true);
+		StringBuilder events = new StringBuilder();
+		while (cursor.hasNext()) {
+			RdfTreeCursor.Event event = cursor.next();
+			events.append(event).append(' ');
+			if (event == RdfTreeCursor.Event.ENTER_NODE && cursor.getDepth() == 1) cursor.skip();
+		}
+
+		assertEquals("ENTER_NODE ENTER_GROUP LEAF ENTER_NODE EXIT_GROUP ENTER_GROUP LEAF EXIT_GROUP EXIT_NODE ", events.toString());
+	}
+
+	@Test
+	public void the_depth_of_a_node_is_found_without_sorting_the_tree() {
+		RdfTree root = createTreeWithTwoValuesOfOnePredicateApart();
+
+		assertEquals(0, root.getDepthOf("uri:a"));
+		assertEquals(1, root.getDepthOf("uri:b"));
+		assertEquals(2, root.getDepthOf("uri:c"));
+		assertEquals(-1, root.getDepthOf("uri:d"));
+		assertEquals(resource("uri:b"), root.getChildren().get(0).getNode());
+	}
+
+	@Test
+	public void a_chain_many_thousands_of_nodes_deep_is_written_in_each_format_on_a_small_stack() throws Throwable {
+		final RdfTree root = createChain(5000);
+		runOnSmallStack(new Runnable() {
+			public void run() {
+				assertTrue(root.asJson().contains("uri:5000"));
+				assertTrue(root.asXml().contains("uri:5000"));
+				assertTrue(root.asCbor().length > 5000);
+			}
+		});
+	}
+
+	@Test
+	public void a_chain_many_thousands_of_nodes_deep_is_frozen_on_a_small_stack() throws Throwable {
+		final RdfTree root = createChain(5000);
+		runOnSmallStack(new Runnable() {
+			public void run() {
+				RdfTree frozen = root.freeze();
+				assertEquals(5000, frozen.getDepthOf("uri:5000"));
+				assertEquals(root.asJson(RdfTreeJsonWriter.COMPACT), frozen.asJson(RdfTreeJsonWriter.COMPACT));
+			}
+		});
+	}
+
+	private RdfTree createChain(int length) {
+		RdfTree root = new RdfTree(model, nameResolver, resource("uri:0"));
+		RdfTree tree = root;
+		for (int i = 0; i < length; i++) {
+			tree.addChild(model.createStatement(resource("uri:" + i), p, resource("uri:" + (i + 1))));
+			tree = tree.getChildren().get(0);
+		}
+		return root;
+	}
+
+	private void runOnSmallStack(Runnable runnable) throws Throwable {
+		final Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, runnable, "small-stack", 256 * 1024);
+		thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+			public void uncaughtException(Thread thread, Throwable throwable) {
+				failure[0] = throwable;
+			}
+		});
+		thread.start();
+		thread.join();
+		if (failure[0] != null) throw failure[0];
+	}
+
+	private RdfTree createTreeWithTwoValuesOfOnePredicateApart() {
+		Property q = model.createProperty("uri:q");
+		RdfTree root = new RdfTree(model, nameResolver, resource("uri:a"));
+		root.addChild(model.createStatement(resource("uri:a"), p, resource("uri:b")));
+		root.addChild(model.createStatement(resource("uri:a"), q, model.createLiteral("y")));
+		root.addChild(model.createStatement(resource("uri:a"), p, model.createLiteral("x")));
+		root.getChildren().get(0).addChild(model.createStatement(resource("uri:b"), p, resource("uri:c")));
+		return root;
+	}
+
+	private String walk(RdfTreeCursor cursor) {
+		List<String> events = Lists.newArrayList();
+		while (cursor.hasNext()) {
+			RdfTreeCursor.Event event = cursor.next();
+			RdfTree tree = cursor.getTree();
+			String name = event == RdfTreeCursor.Event.ENTER_GROUP || event == RdfTreeCursor.Event.EXIT_GROUP
+					? tree.getPredicate().getURI() : tree.getNode().toString();
+			events.add(event + " " + name + " " + cursor.getDepth());
+		}
+		return Joiner.on(", ").join(events);
+	}
+
+	private Resource resource(String uri) {
+		return model.createResource(uri);
+	}
 
 }
@@ -5,10 +5,15 @@ import java.util.Comparator;
 import org.junit.Test;
 
 import com.google.common.collect.Lists;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.rdf.model.Model;
+import com.hp.hpl.jena.rdf.model.Property;
+import com.hp.hpl.jena.rdf.model.RDFNode;
 
 import daverog.jsonld.tree.RdfTreeUtils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 
 public class RdfTreeUtilsTest {
 	
@@ -76,4 +81,25 @@ public class RdfTreeUtilsTest {
 	}
 
 	
+	@Test
+	public void detachedNodesAreEqualToTheirOriginalsWithoutBelongingToTheirModel() {
+		Model model = ModelUtils.createJenaModel("<uri:a> <uri:p> [] .");
+		RDFNode[] nodes = new RDFNode[] {
+				model.createResource("uri:a"),
+				model.listObjects().next(),
+				model.createLiteral("plain"),
+				model.createLiteral("tagged", "en"),
+				model.createTypedLiteral("1.5", XSDDatatype.XSDdecimal)};
+		for (RDFNode node : nodes) {
+			RDFNode detached = RdfTreeUtils.detachNode(node);
+			assertEquals(node, detached);
+			assertEquals(node.asNode(), detached.asNode());
+			assertNotSame(model, detached.getModel());
+		}
+
+		Property property = model.createProperty("uri:p");
+		assertEquals(property, RdfTreeUtils.detachProperty(property));
+		assertNotSame(model, RdfTreeUtils.detachProperty(property).getModel());
+	}
+
 }